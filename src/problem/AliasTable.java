@@ -0,0 +1,99 @@
+package problem;
+
+/**
+ * Walker/Vose alias tables for many small discrete distributions stored back
+ * to back. Distribution j owns the outcomes [start[j], start[j + 1]) and is
+ * sampled in O(1) from a single uniform random number.
+ */
+public class AliasTable {
+
+	private int[] start;
+	/** Probability of keeping the column rather than taking its alias */
+	private double[] keep;
+	/** Alias outcome of each column, as a global outcome index */
+	private int[] alias;
+
+	/**
+	 * Builds the alias tables
+	 * @param probabilities Outcome probabilities. Each distribution is
+	 * normalised, so they need not sum exactly to 1. A distribution with no
+	 * mass always returns its first outcome.
+	 * @param start Offsets of each distribution, plus a final end offset
+	 */
+	public AliasTable(double[] probabilities, int[] start) {
+		this.start = start;
+		keep = new double[probabilities.length];
+		alias = new int[probabilities.length];
+		int[] small = new int[probabilities.length];
+		int[] large = new int[probabilities.length];
+		for (int j = 0; j < start.length - 1; j++) {
+			int first = start[j];
+			int n = start[j + 1] - first;
+			double sum = 0;
+			for (int i = first; i < first + n; i++) {
+				sum += probabilities[i];
+			}
+			if (sum <= 0) {
+				for (int i = first; i < first + n; i++) {
+					keep[i] = i == first ? 1.0 : 0.0;
+					alias[i] = first;
+				}
+				continue;
+			}
+
+			// Scale so that the average column is 1, then pair each small
+			// column with a large one
+			int numSmall = 0;
+			int numLarge = 0;
+			for (int i = first; i < first + n; i++) {
+				keep[i] = probabilities[i] * n / sum;
+				alias[i] = i;
+				if (keep[i] < 1.0) {
+					small[numSmall++] = i;
+				} else {
+					large[numLarge++] = i;
+				}
+			}
+			while (numSmall > 0 && numLarge > 0) {
+				int s = small[--numSmall];
+				int l = large[--numLarge];
+				alias[s] = l;
+				keep[l] = (keep[l] + keep[s]) - 1.0;
+				if (keep[l] < 1.0) {
+					small[numSmall++] = l;
+				} else {
+					large[numLarge++] = l;
+				}
+			}
+
+			// Anything left over is 1 up to rounding error
+			while (numLarge > 0) {
+				keep[large[--numLarge]] = 1.0;
+			}
+			while (numSmall > 0) {
+				keep[small[--numSmall]] = 1.0;
+			}
+		}
+	}
+
+	/**
+	 * Samples an outcome of distribution j
+	 * @param j Distribution index
+	 * @param u Uniform random number in [0, 1)
+	 * @return global outcome index in [start[j], start[j + 1])
+	 */
+	public int sample(int j, double u) {
+		int first = start[j];
+		int n = start[j + 1] - first;
+		double x = u * n;
+		int column = (int) x;
+		if (column >= n) {
+			column = n - 1;
+		}
+		int i = first + column;
+		if (x - column < keep[i]) {
+			return i;
+		}
+		return alias[i];
+	}
+}
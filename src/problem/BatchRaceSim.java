@@ -0,0 +1,348 @@
+package problem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Advances many independent races on the same track in lockstep. All races
+ * start from the same kind of state (same players, opponents and
+ * distractors), and every per-race quantity lives in a primitive array
+ * indexed by race, so a turn of all races is a few tight loops over flat
+ * arrays with no allocation.
+ *
+ * Player moves are sampled from the compiled TransitionTables and opponent
+ * moves from the OpponentTables, so each race follows exactly the same
+ * distribution as RaceSimTools.sampleNextState. Races that have finished are
+ * left alone until the next reset.
+ */
+public class BatchRaceSim {
+
+	private static final RaceState.Status[] STATUSES = RaceState.Status.values();
+	private static final byte RACING = (byte) RaceState.Status.RACING.ordinal();
+	private static final byte WON = (byte) RaceState.Status.WON.ordinal();
+	private static final byte LOST = (byte) RaceState.Status.LOST.ordinal();
+
+	private int numRaces;
+	private Track track;
+	private int numCols;
+	private Track.CellType[] cellTypes;
+
+	private int numPlayers;
+	private int numOpponents;
+	private int numDistractors;
+	/** Number of longs per race in the distractor bitset */
+	private int distractorWords;
+	private int turnLimit;
+
+	// Race constants
+	private List<Player> players;
+	private List<Opponent> opponents;
+	private List<Distractor> distractors;
+	/** Samples the actors' moves, shared with PackedRaceSim */
+	private RaceStepper stepper;
+	/** Cells of the players in obstacle mode, rebuilt for each race step */
+	private CellSet obstacleModeCells;
+
+	// Per race state, indexed by race (times actors per race)
+	private int[] turnNo;
+	private byte[] status;
+	private int[] playerCell;
+	private boolean[] playerObstacle;
+	private double[] playerDamage;
+	private double[] totalDamage;
+	private int[] opponentCell;
+	private long[] distractorBits;
+
+	/**
+	 * Creates numRaces races, all in the state start
+	 * @param track
+	 * @param start Initial state of every race
+	 * @param numRaces
+	 */
+	public BatchRaceSim(Track track, RaceState start, int numRaces) {
+		this.numRaces = numRaces;
+		this.track = track;
+		numCols = track.getNumCols();
+		cellTypes = PackedRaceSim.cellTypes(track);
+
+		players = new ArrayList<Player>(start.getPlayers());
+		opponents = new ArrayList<Opponent>(start.getOpponents());
+		distractors = new ArrayList<Distractor>(start.getDistractors());
+		numPlayers = players.size();
+		numOpponents = opponents.size();
+		numDistractors = distractors.size();
+		distractorWords = (numDistractors + 63) / 64;
+		turnLimit = numOpponents == 0 ? 2 * numCols : 100 * numCols;
+
+		stepper = new RaceStepper(track, players, opponents, distractors);
+		obstacleModeCells = new CellSet(track);
+
+		turnNo = new int[numRaces];
+		status = new byte[numRaces];
+		playerCell = new int[numRaces * numPlayers];
+		playerObstacle = new boolean[numRaces * numPlayers];
+		playerDamage = new double[numRaces * numPlayers];
+		totalDamage = new double[numRaces];
+		opponentCell = new int[numRaces * numOpponents];
+		distractorBits = new long[numRaces * distractorWords];
+		reset(start);
+	}
+
+	/**
+	 * Puts every race back into a state and clears the damage totals
+	 * @param state
+	 */
+	public void reset(RaceState state) {
+		for (int r = 0; r < numRaces; r++) {
+			reset(r, state);
+		}
+	}
+
+	/**
+	 * Puts one race into a state and clears its damage total
+	 * @param race
+	 * @param state
+	 */
+	public void reset(int race, RaceState state) {
+		turnNo[race] = state.getTurnNo();
+		status[race] = (byte) state.getStatus().ordinal();
+		totalDamage[race] = 0;
+		for (int i = 0; i < numPlayers; i++) {
+			Player p = state.getPlayers().get(i);
+			int j = race * numPlayers + i;
+			playerCell[j] = cellIndex(p.getPosition());
+			playerObstacle[j] = p.isObstacle();
+			playerDamage[j] = p.getDamageCost();
+		}
+		for (int i = 0; i < numOpponents; i++) {
+			opponentCell[race * numOpponents + i] =
+					cellIndex(state.getOpponents().get(i).getPosition());
+		}
+		int first = race * distractorWords;
+		for (int w = 0; w < distractorWords; w++) {
+			distractorBits[first + w] = 0;
+		}
+		for (int i = 0; i < numDistractors; i++) {
+			if (state.getDistractors().get(i).hasAppeared()) {
+				distractorBits[first + (i >>> 6)] |= 1L << i;
+			}
+		}
+	}
+
+	/**
+	 * Advances every race that is still going by one turn
+	 * @param actions actions[race][player], the players' actions in each race
+	 * @param random
+	 */
+	public void step(Action[][] actions, Random random) {
+		boolean adv1Plus = numPlayers > 1;
+		for (int r = 0; r < numRaces; r++) {
+			if (status[r] != RACING) {
+				continue;
+			}
+
+			// Distractors first, since players see the new ones
+			int first = r * distractorWords;
+			for (int i = 0; i < numDistractors; i++) {
+				long bit = 1L << i;
+				if (stepper.sampleAppeared(i, random)) {
+					distractorBits[first + (i >>> 6)] |= bit;
+				} else {
+					distractorBits[first + (i >>> 6)] &= ~bit;
+				}
+			}
+
+			boolean won = false;
+			for (int i = 0; i < numPlayers; i++) {
+				stepPlayer(r, i, actions[r][i], adv1Plus, random);
+				won |= cellTypes[playerCell[r * numPlayers + i]]
+						== Track.CellType.GOAL;
+			}
+
+			// Players in obstacle mode block the opponents
+			if (numOpponents > 0) {
+				obstacleModeCells.clear();
+				for (int j = r * numPlayers; j < (r + 1) * numPlayers; j++) {
+					if (playerObstacle[j]) {
+						obstacleModeCells.add(playerCell[j]);
+					}
+				}
+			}
+
+			boolean lost = false;
+			for (int i = 0; i < numOpponents; i++) {
+				int j = r * numOpponents + i;
+				opponentCell[j] = stepper.stepOpponent(i, opponentCell[j],
+						obstacleModeCells, random);
+				lost |= cellTypes[opponentCell[j]] == Track.CellType.GOAL;
+			}
+
+			turnNo[r]++;
+			if (won) {
+				status[r] = WON;
+			} else if (lost || turnNo[r] > turnLimit) {
+				status[r] = LOST;
+			}
+		}
+	}
+
+	/**
+	 * Samples a single outcome of a player's action in one race
+	 */
+	private void stepPlayer(int r, int i, Action action, boolean adv1Plus,
+			Random random) {
+		int j = r * numPlayers + i;
+		boolean isObstacle = playerObstacle[j];
+		int k = stepper.samplePlayer(i, playerCell[j], isObstacle, action,
+				adv1Plus, random);
+		double damage = stepper.getDamage(i, k, distractorBits,
+				r * distractorWords);
+		playerCell[j] = stepper.getNextCell(i, k);
+		playerObstacle[j] = stepper.getNextObstacle(i, k, isObstacle);
+		playerDamage[j] = damage;
+		totalDamage[r] += damage;
+	}
+
+	/**
+	 * Converts one race back into a RaceState
+	 * @param race
+	 * @return the race's current state
+	 */
+	public RaceState getRaceState(int race) {
+		List<Player> newPlayers = new ArrayList<Player>(numPlayers);
+		for (int i = 0; i < numPlayers; i++) {
+			Player p = players.get(i);
+			int j = race * numPlayers + i;
+			newPlayers.add(new Player(p.getId(), p.getCycle(),
+					toGridCell(playerCell[j]), playerDamage[j],
+					playerObstacle[j]));
+		}
+		List<Opponent> newOpponents = new ArrayList<Opponent>(numOpponents);
+		for (int i = 0; i < numOpponents; i++) {
+			Opponent o = opponents.get(i);
+			newOpponents.add(new Opponent(o.getId(), o.getPolicy(),
+					toGridCell(opponentCell[race * numOpponents + i])));
+		}
+		List<Distractor> newDistractors =
+				new ArrayList<Distractor>(numDistractors);
+		for (int i = 0; i < numDistractors; i++) {
+			boolean appeared = (distractorBits[race * distractorWords
+					+ (i >>> 6)] & (1L << i)) != 0;
+			newDistractors.add(distractors.get(i).getAppeared(appeared));
+		}
+		return new RaceState(newPlayers, newOpponents, newDistractors,
+				getStatus(race), turnNo[race]);
+	}
+
+	private int cellIndex(GridCell g) {
+		return g.getRow() * numCols + g.getCol();
+	}
+
+	private GridCell toGridCell(int cell) {
+		return track.getCell(cell);
+	}
+
+	public int getNumRaces() {
+		return numRaces;
+	}
+
+	public int getNumPlayers() {
+		return numPlayers;
+	}
+
+	public RaceState.Status getStatus(int race) {
+		return STATUSES[status[race]];
+	}
+
+	public int getTurnNo(int race) {
+		return turnNo[race];
+	}
+
+	public int getPlayerCell(int race, int i) {
+		return playerCell[race * numPlayers + i];
+	}
+
+	public boolean isPlayerObstacle(int race, int i) {
+		return playerObstacle[race * numPlayers + i];
+	}
+
+	public int getOpponentCell(int race, int i) {
+		return opponentCell[race * numOpponents + i];
+	}
+
+	/**
+	 * Returns the damage taken by all players of a race since the last reset
+	 * @param race
+	 * @return total damage
+	 */
+	public double getTotalDamage(int race) {
+		return totalDamage[race];
+	}
+
+	/**
+	 * Returns true when no race is still going
+	 * @return true if every race is won or lost
+	 */
+	public boolean isFinished() {
+		return getNumRacing() == 0;
+	}
+
+	public int getNumRacing() {
+		return count(RACING);
+	}
+
+	public int getNumWon() {
+		return count(WON);
+	}
+
+	public int getNumLost() {
+		return count(LOST);
+	}
+
+	/**
+	 * Returns the fraction of races that have been won
+	 * @return win rate
+	 */
+	public double getWinRate() {
+		return (double) getNumWon() / numRaces;
+	}
+
+	/**
+	 * Returns the average over races of the total damage since the last reset
+	 * @return mean damage per race
+	 */
+	public double getMeanDamage() {
+		double sum = 0;
+		for (int r = 0; r < numRaces; r++) {
+			sum += totalDamage[r];
+		}
+		return sum / numRaces;
+	}
+
+	/**
+	 * Returns the average turn number of the races that are won
+	 * @return mean turns to win, or NaN if no race is won
+	 */
+	public double getMeanTurnsToWin() {
+		double sum = 0;
+		int n = 0;
+		for (int r = 0; r < numRaces; r++) {
+			if (status[r] == WON) {
+				sum += turnNo[r];
+				n++;
+			}
+		}
+		return n == 0 ? Double.NaN : sum / n;
+	}
+
+	private int count(byte s) {
+		int n = 0;
+		for (int r = 0; r < numRaces; r++) {
+			if (status[r] == s) {
+				n++;
+			}
+		}
+		return n;
+	}
+}
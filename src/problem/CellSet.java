@@ -0,0 +1,77 @@
+package problem;
+
+import java.util.Arrays;
+
+/**
+ * A set of cells of one track, stored as a bitset with one bit per cell index
+ * (row * numCols + col). Membership tests are O(1) however many cells are
+ * in the set. Cells outside the track are never members.
+ */
+public class CellSet {
+
+	private int numRows;
+	private int numCols;
+	private long[] words;
+
+	/**
+	 * Creates an empty set for the cells of a track
+	 * @param track
+	 */
+	public CellSet(Track track) {
+		numRows = track.getNumRows();
+		numCols = track.getNumCols();
+		words = new long[(numRows * numCols + 63) / 64];
+	}
+
+	public void add(int cell) {
+		words[cell >>> 6] |= 1L << cell;
+	}
+
+	public void add(GridCell g) {
+		if (withinBounds(g)) {
+			add(g.getRow() * numCols + g.getCol());
+		}
+	}
+
+	public void remove(int cell) {
+		words[cell >>> 6] &= ~(1L << cell);
+	}
+
+	public boolean contains(int cell) {
+		return (words[cell >>> 6] & (1L << cell)) != 0;
+	}
+
+	public boolean contains(GridCell g) {
+		return withinBounds(g) && contains(g.getRow() * numCols + g.getCol());
+	}
+
+	public void clear() {
+		Arrays.fill(words, 0);
+	}
+
+	public boolean isEmpty() {
+		for (long w : words) {
+			if (w != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of cells in the set
+	 * @return size
+	 */
+	public int size() {
+		int n = 0;
+		for (long w : words) {
+			n += Long.bitCount(w);
+		}
+		return n;
+	}
+
+	private boolean withinBounds(GridCell g) {
+		return g.getRow() >= 0 && g.getRow() < numRows && g.getCol() >= 0
+				&& g.getCol() < numCols;
+	}
+}
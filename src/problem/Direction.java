@@ -6,5 +6,33 @@ package problem;
  *
  */
 public enum Direction {
-	N, NE, E, SE, S, SW, W, NW
+	N(-1, 0), NE(-1, 1), E(0, 1), SE(1, 1), S(1, 0), SW(1, -1), W(0, -1),
+	NW(-1, -1);
+	
+	private final int rowOffset;
+	private final int colOffset;
+	
+	private Direction(int rowOffset, int colOffset) {
+		this.rowOffset = rowOffset;
+		this.colOffset = colOffset;
+	}
+	
+	public int getRowOffset() {
+		return rowOffset;
+	}
+	
+	public int getColOffset() {
+		return colOffset;
+	}
+	
+	/**
+	 * Returns the change in a packed cell index (row * numCols + col) when
+	 * moving one cell in this direction. Only meaningful when the move stays
+	 * within the same grid.
+	 * @param numCols Row width of the packing
+	 * @return index offset
+	 */
+	public int getIndexOffset(int numCols) {
+		return rowOffset * numCols + colOffset;
+	}
 }
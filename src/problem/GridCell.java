@@ -43,28 +43,49 @@ public class GridCell {
 		return col;
 	}
 	
+	/**
+	 * Returns a new neighbouring cell. Track.getNeighbour returns the same
+	 * cell without allocating.
+	 * 
+	 * @param dir
+	 *            the direction of the neighbour.
+	 * @return the neighbouring cell.
+	 */
 	public GridCell shifted(Direction dir) {
-		switch(dir) {
-		case N:
-			return new GridCell(row - 1, col);
-		case NE:
-			return new GridCell(row - 1, col + 1);
-		case E:
-			return new GridCell(row, col + 1);
-		case SE:
-			return new GridCell(row + 1, col + 1);
-		case S:
-			return new GridCell(row + 1, col);
-		case SW:
-			return new GridCell(row + 1, col - 1);
-		case W:
-			return new GridCell(row, col - 1);
-		case NW:
-			return new GridCell(row - 1, col - 1);
-		default:
+		if (dir == null) {
 			System.out.println("ERROR: Can't get neighbour - invalid direction");
 			return null;
 		}
+		return new GridCell(row + dir.getRowOffset(), col + dir.getColOffset());
+	}
+	
+	/**
+	 * Returns the packed index row * numCols + col of a cell.
+	 * 
+	 * @param row
+	 *            the row index of the cell.
+	 * @param col
+	 *            the column index of the cell.
+	 * @param numCols
+	 *            the number of columns of the grid.
+	 * @return the packed index.
+	 */
+	public static int toIndex(int row, int col, int numCols) {
+		return row * numCols + col;
+	}
+	
+	/**
+	 * Returns the row of a packed index.
+	 */
+	public static int rowOf(int index, int numCols) {
+		return index / numCols;
+	}
+	
+	/**
+	 * Returns the column of a packed index.
+	 */
+	public static int colOf(int index, int numCols) {
+		return index % numCols;
 	}
 
 	@Override
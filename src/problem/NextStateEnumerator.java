@@ -0,0 +1,372 @@
+package problem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Enumerates the joint successors of a race state without building a tree.
+ * The factored distributions (each distractor, then each player, then each
+ * opponent) are walked as an odometer, depth first, keeping only the current
+ * choice and running probability for every factor. Player outcomes come from
+ * the compiled transition tables; opponent outcomes are recomputed only when
+ * the player outcomes they depend on change.
+ *
+ * In marginal mode, distractors that no player can land on this turn are
+ * summed out and reported as not appeared with probability 1. Distractors
+ * appear afresh every turn, so this placeholder does not change any later
+ * turn, and the successors can be expanded again like any other state.
+ * Opponents always keep their real move distribution, since where they end
+ * up decides when they can reach the goal on later turns.
+ */
+class NextStateEnumerator {
+
+	private RaceState state;
+	private Track track;
+	private int numCols;
+	private int numDistractors;
+	private int numPlayers;
+	private int numOpponents;
+
+	/** The two possible next states of each distractor */
+	private Distractor[][] distractorOutcomes;
+	private double[][] distractorProbs;
+
+	/** Possible next states of each player, without distractor damage */
+	private Player[][] playerOutcomes;
+	/** The same outcomes with distractor damage added, built lazily */
+	private Player[][] distractedOutcomes;
+	private double[][] playerProbs;
+
+	/** Possible next states of each opponent, given the current players */
+	private Opponent[][] opponentOutcomes;
+	private double[][] opponentProbs;
+	private int[] numOpponentOutcomes;
+	/** Cells of the chosen players in obstacle mode */
+	private CellSet extraObstacles;
+	/** Cells where some distractor could appear */
+	private CellSet distractorCells;
+
+	NextStateEnumerator(RaceState state, List<Action> actions, Track track,
+			boolean marginalise) {
+		this.state = state;
+		this.track = track;
+		numCols = track.getNumCols();
+		numDistractors = state.getDistractors().size();
+		numPlayers = state.getPlayers().size();
+		numOpponents = state.getOpponents().size();
+		boolean adv1Plus = numPlayers > 1;
+
+		distractorOutcomes = new Distractor[numDistractors][];
+		distractorProbs = new double[numDistractors][];
+		for (int i = 0; i < numDistractors; i++) {
+			Distractor d = state.getDistractors().get(i);
+			distractorOutcomes[i] = new Distractor[] {
+					d.getAppeared(true), d.getAppeared(false) };
+			double p = d.getAppearProbability();
+			distractorProbs[i] = new double[] { p, 1.0 - p };
+		}
+
+		playerOutcomes = new Player[numPlayers][];
+		distractedOutcomes = new Player[numPlayers][];
+		playerProbs = new double[numPlayers][];
+		for (int i = 0; i < numPlayers; i++) {
+			Player player = state.getPlayers().get(i);
+			TransitionTable table =
+					track.getTransitionTable(player.getCycle());
+			Action action = table.normalise(actions.get(i),
+					player.isObstacle(), adv1Plus);
+			int cell = cellIndex(player.getPosition());
+			int start = table.getStart(cell, action);
+			int n = table.getEnd(cell, action) - start;
+			playerOutcomes[i] = new Player[n];
+			distractedOutcomes[i] = new Player[n];
+			playerProbs[i] = new double[n];
+			for (int k = 0; k < n; k++) {
+				int j = start + k;
+				playerOutcomes[i][k] = new Player(player.getId(),
+						player.getCycle(), toGridCell(table.getNextCell(j)),
+						table.getDamage(j),
+						table.getNextObstacle(j, player.isObstacle()));
+				playerProbs[i][k] = table.getProbability(j);
+			}
+		}
+
+		if (marginalise) {
+			marginaliseDistractors();
+		}
+
+		opponentOutcomes = new Opponent[numOpponents][];
+		opponentProbs = new double[numOpponents][];
+		numOpponentOutcomes = new int[numOpponents];
+		extraObstacles = new CellSet(track);
+		distractorCells = track.getDistractorCells();
+		for (int i = 0; i < numOpponents; i++) {
+			opponentOutcomes[i] = new Opponent[OpponentTable.ACTIONS.length];
+			opponentProbs[i] = new double[OpponentTable.ACTIONS.length];
+		}
+	}
+
+	/**
+	 * Visits every joint successor with non-zero probability
+	 * @param visitor
+	 */
+	void enumerate(SuccessorVisitor visitor) {
+		int firstOpponent = numDistractors + numPlayers;
+		int numLevels = firstOpponent + numOpponents;
+		int[] choice = new int[numLevels];
+		double[] prefix = new double[numLevels + 1];
+		prefix[0] = 1.0;
+		choice[0] = -1;
+		int level = 0;
+		while (level >= 0) {
+			choice[level]++;
+			if (choice[level] >= numOutcomes(level)) {
+				level--;
+				continue;
+			}
+			double p = probability(level, choice[level]);
+			if (p <= 0) {
+				continue;
+			}
+			prefix[level + 1] = prefix[level] * p;
+			if (level + 1 == numLevels) {
+				visitor.visit(buildState(choice), prefix[numLevels]);
+			} else {
+				level++;
+				choice[level] = -1;
+				if (level == firstOpponent) {
+					computeOpponentOutcomes(choice);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visits at most maxOutcomes successors, found by a beam search over the
+	 * factors. After each factor only the maxOutcomes most likely partial
+	 * outcomes are kept, and any partial outcome below epsilon is dropped,
+	 * since completing it can only make it less likely. Time and memory are
+	 * therefore bounded by maxOutcomes times the largest factor size per
+	 * factor, however large the full joint distribution is.
+	 * @param maxOutcomes Beam width, at least 1
+	 * @param epsilon Smallest probability worth keeping
+	 * @param visitor
+	 * @return the probability mass that was dropped
+	 */
+	double enumeratePruned(int maxOutcomes, double epsilon,
+			SuccessorVisitor visitor) {
+		int firstOpponent = numDistractors + numPlayers;
+		int numLevels = firstOpponent + numOpponents;
+		int[][] beam = new int[][] { new int[numLevels] };
+		double[] beamProbs = new double[] { 1.0 };
+		int beamSize = 1;
+		double dropped = 0;
+		for (int level = 0; level < numLevels; level++) {
+			int maxBranch = level < firstOpponent ? numOutcomes(level)
+					: OpponentTable.ACTIONS.length;
+			int[][] next = new int[beamSize * maxBranch][];
+			double[] nextProbs = new double[beamSize * maxBranch];
+			int n = 0;
+			for (int b = 0; b < beamSize; b++) {
+				if (level >= firstOpponent) {
+					computeOpponentOutcomes(beam[b]);
+				}
+				for (int k = 0; k < numOutcomes(level); k++) {
+					double p = beamProbs[b] * probability(level, k);
+					if (p <= 0) {
+						continue;
+					}
+					if (p < epsilon) {
+						dropped += p;
+						continue;
+					}
+					int[] choice = beam[b].clone();
+					choice[level] = k;
+					next[n] = choice;
+					nextProbs[n] = p;
+					n++;
+				}
+			}
+
+			// Keep the most likely partial outcomes: all those above the
+			// cutoff, then as many ties at the cutoff as there is room for
+			if (n > maxOutcomes) {
+				double[] sorted = Arrays.copyOf(nextProbs, n);
+				Arrays.sort(sorted);
+				double cutoff = sorted[n - maxOutcomes];
+				int ties = maxOutcomes;
+				for (int i = 0; i < n; i++) {
+					if (nextProbs[i] > cutoff) {
+						ties--;
+					}
+				}
+				int kept = 0;
+				for (int i = 0; i < n; i++) {
+					boolean keep = nextProbs[i] > cutoff;
+					if (!keep && nextProbs[i] == cutoff && ties > 0) {
+						keep = true;
+						ties--;
+					}
+					if (keep) {
+						next[kept] = next[i];
+						nextProbs[kept] = nextProbs[i];
+						kept++;
+					} else {
+						dropped += nextProbs[i];
+					}
+				}
+				n = kept;
+			}
+			beam = next;
+			beamProbs = nextProbs;
+			beamSize = n;
+		}
+
+		for (int b = 0; b < beamSize; b++) {
+			if (numOpponents > 0) {
+				computeOpponentOutcomes(beam[b]);
+			}
+			visitor.visit(buildState(beam[b]), beamProbs[b]);
+		}
+		return dropped;
+	}
+
+	private int numOutcomes(int level) {
+		if (level < numDistractors) {
+			return distractorProbs[level].length;
+		}
+		level -= numDistractors;
+		if (level < numPlayers) {
+			return playerProbs[level].length;
+		}
+		return numOpponentOutcomes[level - numPlayers];
+	}
+
+	private double probability(int level, int k) {
+		if (level < numDistractors) {
+			return distractorProbs[level][k];
+		}
+		level -= numDistractors;
+		if (level < numPlayers) {
+			return playerProbs[level][k];
+		}
+		return opponentProbs[level - numPlayers][k];
+	}
+
+	/**
+	 * Collapses the distractors that no player can land on this turn
+	 */
+	private void marginaliseDistractors() {
+		boolean[] reachable = new boolean[track.getNumRows() * numCols];
+		for (int i = 0; i < numPlayers; i++) {
+			for (Player p : playerOutcomes[i]) {
+				reachable[cellIndex(p.getPosition())] = true;
+			}
+		}
+		for (int i = 0; i < numDistractors; i++) {
+			Distractor d = state.getDistractors().get(i);
+			if (!reachable[cellIndex(d.getPosition())]) {
+				distractorOutcomes[i] = new Distractor[] {
+						distractorOutcomes[i][1] };
+				distractorProbs[i] = new double[] { 1.0 };
+			}
+		}
+	}
+
+	/**
+	 * Fills the opponent outcome lists for the players currently chosen
+	 */
+	private void computeOpponentOutcomes(int[] choice) {
+		if (numOpponents == 0) {
+			return;
+		}
+
+		// Get extra obstacles due to player cycles being in obstacle mode
+		extraObstacles.clear();
+		for (int i = 0; i < numPlayers; i++) {
+			Player p = playerOutcomes[i][choice[numDistractors + i]];
+			if (p.isObstacle()) {
+				extraObstacles.add(p.getPosition());
+			}
+		}
+
+		// One outcome per distinct resulting cell
+		for (int i = 0; i < numOpponents; i++) {
+			Opponent opponent = state.getOpponents().get(i);
+			OpponentTable table =
+					track.getOpponentTable(opponent.getPolicy());
+			int cell = cellIndex(opponent.getPosition());
+			Opponent[] outcomes = opponentOutcomes[i];
+			double[] probs = opponentProbs[i];
+			int n = 0;
+			for (int a = 0; a < OpponentTable.ACTIONS.length; a++) {
+				double p = table.getProbability(cell, a);
+				if (p <= 0) {
+					continue;
+				}
+				GridCell g = RaceSimTools.furthestMove(
+						opponent.getPosition(), OpponentTable.ACTIONS[a],
+						track, extraObstacles, false);
+				int k = 0;
+				while (k < n && !outcomes[k].getPosition().equals(g)) {
+					k++;
+				}
+				if (k == n) {
+					outcomes[n] = new Opponent(opponent.getId(),
+							opponent.getPolicy(), g);
+					probs[n] = 0;
+					n++;
+				}
+				probs[k] += p;
+			}
+			numOpponentOutcomes[i] = n;
+		}
+	}
+
+	/**
+	 * Builds the RaceState for the current choice of every factor
+	 */
+	private RaceState buildState(int[] choice) {
+		List<Distractor> distractors = new ArrayList<Distractor>(
+				numDistractors);
+		for (int i = 0; i < numDistractors; i++) {
+			distractors.add(distractorOutcomes[i][choice[i]]);
+		}
+		List<Player> players = new ArrayList<Player>(numPlayers);
+		for (int i = 0; i < numPlayers; i++) {
+			int k = choice[numDistractors + i];
+			Player p = playerOutcomes[i][k];
+			if (distractorCells.contains(p.getPosition())
+					&& RaceSimTools.isDistracted(p.getPosition(), distractors)) {
+				if (distractedOutcomes[i][k] == null) {
+					distractedOutcomes[i][k] = new Player(p.getId(),
+							p.getCycle(), p.getPosition(), p.getDamageCost()
+							+ RaceSimTools.getDistractorDamage(p.getCycle()),
+							p.isObstacle());
+				}
+				p = distractedOutcomes[i][k];
+			}
+			players.add(p);
+		}
+		List<Opponent> opponents = new ArrayList<Opponent>(numOpponents);
+		for (int i = 0; i < numOpponents; i++) {
+			opponents.add(opponentOutcomes[i][
+					choice[numDistractors + numPlayers + i]]);
+		}
+		RaceState.Status status = RaceSimTools.getStatus(players, opponents,
+				track, state.getTurnNo() + 1);
+		long key = track.getZobristKeys().update(state.getZobristKey(track),
+				state, players, opponents, distractors);
+		return new RaceState(players, opponents, distractors, status,
+				state.getTurnNo() + 1, track, key);
+	}
+
+	private int cellIndex(GridCell g) {
+		return g.getRow() * numCols + g.getCol();
+	}
+
+	private GridCell toGridCell(int cell) {
+		return track.getCell(cell);
+	}
+}
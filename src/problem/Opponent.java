@@ -9,6 +9,8 @@ public class Opponent implements Actor {
 	private String id;
 	private RandomPolicy policy;
 	private GridCell position;
+	/** Cached hash code, 0 until computed */
+	private int hash;
 	
 	public Opponent(String id, RandomPolicy policy, GridCell position) {
 		this.id = id;
@@ -28,17 +30,29 @@ public class Opponent implements Actor {
 		return position;
 	}
 
+	/**
+	 * Hashes the policy by identity, so that hashing an opponent does not
+	 * walk the whole policy map. Opponents of the same track share the same
+	 * policy instance.
+	 */
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((id == null) ? 0 : id.hashCode());
-		result = prime * result + ((policy == null) ? 0 : policy.hashCode());
-		result = prime * result
-				+ ((position == null) ? 0 : position.hashCode());
+		int result = hash;
+		if (result == 0) {
+			final int prime = 31;
+			result = 1;
+			result = prime * result + ((id == null) ? 0 : id.hashCode());
+			result = prime * result + System.identityHashCode(policy);
+			result = prime * result
+					+ ((position == null) ? 0 : position.hashCode());
+			hash = result;
+		}
 		return result;
 	}
 
+	/**
+	 * Compares policies by identity. See hashCode.
+	 */
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -48,15 +62,14 @@ public class Opponent implements Actor {
 		if (getClass() != obj.getClass())
 			return false;
 		Opponent other = (Opponent) obj;
+		if (hashCode() != other.hashCode())
+			return false;
 		if (id == null) {
 			if (other.id != null)
 				return false;
 		} else if (!id.equals(other.id))
 			return false;
-		if (policy == null) {
-			if (other.policy != null)
-				return false;
-		} else if (!policy.equals(other.policy))
+		if (policy != other.policy)
 			return false;
 		if (position == null) {
 			if (other.position != null)
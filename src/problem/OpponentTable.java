@@ -0,0 +1,76 @@
+package problem;
+
+/**
+ * An opponent RandomPolicy compiled for one track, with an alias sampler over
+ * the six opponent actions for every cell. Cells are indexed as
+ * row * numCols + col.
+ */
+public class OpponentTable {
+
+	/** Opponent actions in policy order */
+	public static final Action[] ACTIONS = RandomPolicy.ACTIONS;
+
+	private double[] probability;
+	private AliasTable aliases;
+
+	/**
+	 * Compiles a policy. Use Track.getOpponentTable instead so that tables
+	 * are shared.
+	 *
+	 * A policy whose probabilities do not sum to 1 is read the way
+	 * RaceSimTools.chooseRandom reads it in action order: mass beyond 1 is
+	 * cut off, and any shortfall goes to the last possible action. A cell
+	 * with no probability mass at all stays put (ST).
+	 * @param track
+	 * @param policy
+	 */
+	OpponentTable(Track track, RandomPolicy policy) {
+		int numCols = track.getNumCols();
+		int numCells = track.getNumRows() * numCols;
+		probability = new double[numCells * ACTIONS.length];
+		int[] start = new int[numCells + 1];
+		for (int cell = 0; cell < numCells; cell++) {
+			int first = cell * ACTIONS.length;
+			start[cell] = first;
+			double sum = 0;
+			int last = -1;
+			for (int a = 0; a < ACTIONS.length; a++) {
+				double p = cell < policy.size() ?
+						policy.getProbability(cell, a) : 0.0;
+				if (p <= 0 || sum >= 1.0) {
+					continue;
+				}
+				probability[first + a] = Math.min(p, 1.0 - sum);
+				sum += p;
+				last = a;
+			}
+			if (last < 0) {
+				probability[first + ACTIONS.length - 1] = 1.0;
+			} else if (sum < 1.0) {
+				probability[first + last] += 1.0 - sum;
+			}
+		}
+		start[numCells] = numCells * ACTIONS.length;
+		aliases = new AliasTable(probability, start);
+	}
+
+	/**
+	 * Samples the opponent's action at a cell in O(1)
+	 * @param cell Cell index
+	 * @param u Uniform random number in [0, 1)
+	 * @return chosen action
+	 */
+	public Action sample(int cell, double u) {
+		return ACTIONS[aliases.sample(cell, u) - cell * ACTIONS.length];
+	}
+
+	/**
+	 * Returns the probability of an action at a cell
+	 * @param cell Cell index
+	 * @param a Index into ACTIONS
+	 * @return probability
+	 */
+	public double getProbability(int cell, int a) {
+		return probability[cell * ACTIONS.length + a];
+	}
+}
@@ -0,0 +1,344 @@
+package problem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Allocation-free race simulator over packed race states. A packed state is a
+ * plain long[] laid out as follows (P players, O opponents, D distractors):
+ *
+ * [0]                      turn number
+ * [1]                      RaceState.Status ordinal
+ * [2]                      Zobrist key (see ZobristKeys)
+ * [3, 3+P)                 player cell index | obstacle mode flag << 32
+ * [3+P, 3+2P)              player damage cost this turn (double bits)
+ * [3+2P, 3+2P+O)           opponent cell index
+ * [3+2P+O, ...)            distractor hasAppeared bits, 64 per word
+ *
+ * Cell indices are row * numCols + col. Ids, cycles, policies and appear
+ * probabilities never change during a race, so they are held once by the
+ * simulator rather than in every state. step() produces exactly the same
+ * distribution as RaceSimTools.sampleNextState, without any heap allocation.
+ */
+public class PackedRaceSim {
+
+	// Fixed slots
+	private static final int TURN = 0;
+	private static final int STATUS = 1;
+	private static final int KEY = 2;
+	private static final int PLAYERS = 3;
+
+	private static final long OBSTACLE_FLAG = 1L << 32;
+	private static final long CELL_MASK = 0xFFFFFFFFL;
+
+	private static final RaceState.Status[] STATUSES = RaceState.Status.values();
+
+	private Track track;
+	private ZobristKeys keys;
+	private int numCols;
+	/** Cell types in cell index order */
+	private Track.CellType[] cellTypes;
+
+	// Slot offsets
+	private int numPlayers;
+	private int numOpponents;
+	private int numDistractors;
+	private int damageOffset;
+	private int opponentOffset;
+	private int distractorOffset;
+	private int stateLength;
+
+	// Race constants from the template state
+	private List<Player> players;
+	private List<Opponent> opponents;
+	private List<Distractor> distractors;
+	/** Samples the actors' moves, shared with BatchRaceSim */
+	private RaceStepper stepper;
+	/** Cells of the players in obstacle mode, rebuilt every step */
+	private CellSet obstacleModeCells;
+
+	/**
+	 * Creates a simulator for races on a track with the same players,
+	 * opponents and distractors as template
+	 * @param track
+	 * @param template Any state of the race, e.g. the start state
+	 */
+	public PackedRaceSim(Track track, RaceState template) {
+		this.track = track;
+		keys = track.getZobristKeys();
+		numCols = track.getNumCols();
+		cellTypes = cellTypes(track);
+
+		players = new ArrayList<Player>(template.getPlayers());
+		opponents = new ArrayList<Opponent>(template.getOpponents());
+		distractors = new ArrayList<Distractor>(template.getDistractors());
+		numPlayers = players.size();
+		numOpponents = opponents.size();
+		numDistractors = distractors.size();
+		damageOffset = PLAYERS + numPlayers;
+		opponentOffset = damageOffset + numPlayers;
+		distractorOffset = opponentOffset + numOpponents;
+		stateLength = distractorOffset + (numDistractors + 63) / 64;
+
+		stepper = new RaceStepper(track, players, opponents, distractors);
+		obstacleModeCells = new CellSet(track);
+	}
+
+	/**
+	 * Returns a new, zeroed packed state of the right length
+	 * @return new packed state
+	 */
+	public long[] newState() {
+		return new long[stateLength];
+	}
+
+	/**
+	 * Packs a RaceState into a new packed state
+	 * @param state
+	 * @return packed state
+	 */
+	public long[] pack(RaceState state) {
+		long[] packed = newState();
+		pack(state, packed);
+		return packed;
+	}
+
+	/**
+	 * Packs a RaceState into an existing packed state
+	 * @param state
+	 * @param packed Destination, of length getStateLength()
+	 */
+	public void pack(RaceState state, long[] packed) {
+		packed[TURN] = state.getTurnNo();
+		packed[STATUS] = state.getStatus().ordinal();
+		packed[KEY] = state.getZobristKey(track);
+		for (int i = 0; i < numPlayers; i++) {
+			Player p = state.getPlayers().get(i);
+			long word = cellIndex(p.getPosition());
+			if (p.isObstacle()) {
+				word |= OBSTACLE_FLAG;
+			}
+			packed[PLAYERS + i] = word;
+			packed[damageOffset + i] =
+					Double.doubleToRawLongBits(p.getDamageCost());
+		}
+		for (int i = 0; i < numOpponents; i++) {
+			packed[opponentOffset + i] =
+					cellIndex(state.getOpponents().get(i).getPosition());
+		}
+		for (int i = distractorOffset; i < stateLength; i++) {
+			packed[i] = 0;
+		}
+		for (int i = 0; i < numDistractors; i++) {
+			if (state.getDistractors().get(i).hasAppeared()) {
+				packed[distractorOffset + (i >>> 6)] |= 1L << i;
+			}
+		}
+	}
+
+	/**
+	 * Converts a packed state back into a RaceState
+	 * @param packed
+	 * @return the equivalent RaceState
+	 */
+	public RaceState unpack(long[] packed) {
+		List<Player> newPlayers = new ArrayList<Player>(numPlayers);
+		for (int i = 0; i < numPlayers; i++) {
+			Player p = players.get(i);
+			newPlayers.add(new Player(p.getId(), p.getCycle(),
+					toGridCell(getPlayerCell(packed, i)),
+					getPlayerDamage(packed, i), isPlayerObstacle(packed, i)));
+		}
+		List<Opponent> newOpponents = new ArrayList<Opponent>(numOpponents);
+		for (int i = 0; i < numOpponents; i++) {
+			Opponent o = opponents.get(i);
+			newOpponents.add(new Opponent(o.getId(), o.getPolicy(),
+					toGridCell(getOpponentCell(packed, i))));
+		}
+		List<Distractor> newDistractors =
+				new ArrayList<Distractor>(numDistractors);
+		for (int i = 0; i < numDistractors; i++) {
+			newDistractors.add(distractors.get(i).getAppeared(
+					hasAppeared(packed, i)));
+		}
+		return new RaceState(newPlayers, newOpponents, newDistractors,
+				getStatus(packed), getTurnNo(packed), track,
+				getZobristKey(packed));
+	}
+
+	/**
+	 * Samples the next state in place. Same distribution as
+	 * RaceSimTools.sampleNextState, but allocates nothing.
+	 * @param packed The current state, overwritten with the next state
+	 * @param actions One action per player
+	 * @param random
+	 */
+	public void step(long[] packed, Action[] actions, Random random) {
+
+		// Next turn's distractor states
+		for (int i = 0; i < numDistractors; i++) {
+			int word = distractorOffset + (i >>> 6);
+			boolean appeared = stepper.sampleAppeared(i, random);
+			if (appeared != hasAppeared(packed, i)) {
+				packed[word] ^= 1L << i;
+				packed[KEY] ^= keys.distractor(i, true);
+			}
+		}
+
+		// Next turn's player states, which see the new distractors
+		boolean adv1Plus = numPlayers > 1;
+		for (int i = 0; i < numPlayers; i++) {
+			stepPlayer(packed, i, actions[i], adv1Plus, random);
+		}
+
+		// Next turn's opponent states, which see the new players
+		if (numOpponents > 0) {
+			obstacleModeCells.clear();
+			for (int i = 0; i < numPlayers; i++) {
+				if (isPlayerObstacle(packed, i)) {
+					obstacleModeCells.add(getPlayerCell(packed, i));
+				}
+			}
+		}
+		for (int i = 0; i < numOpponents; i++) {
+			stepOpponent(packed, i, random);
+		}
+
+		packed[TURN]++;
+		packed[STATUS] = computeStatus(packed).ordinal();
+	}
+
+	/**
+	 * Samples a single outcome of a player's action and updates its slots
+	 * and the key
+	 */
+	private void stepPlayer(long[] packed, int i, Action action,
+			boolean adv1Plus, Random random) {
+		int cell = getPlayerCell(packed, i);
+		boolean isObstacle = isPlayerObstacle(packed, i);
+		int k = stepper.samplePlayer(i, cell, isObstacle, action, adv1Plus,
+				random);
+		int nextCell = stepper.getNextCell(i, k);
+		double damage = stepper.getDamage(i, k, packed, distractorOffset);
+		boolean nextIsObstacle = stepper.getNextObstacle(i, k, isObstacle);
+		if (nextCell != cell || nextIsObstacle != isObstacle) {
+			packed[KEY] ^= keys.player(i, cell, isObstacle)
+					^ keys.player(i, nextCell, nextIsObstacle);
+		}
+		long word = nextCell;
+		if (nextIsObstacle) {
+			word |= OBSTACLE_FLAG;
+		}
+		packed[PLAYERS + i] = word;
+		packed[damageOffset + i] = Double.doubleToRawLongBits(damage);
+	}
+
+	/**
+	 * Samples a single move of an opponent and updates its slot and the key
+	 */
+	private void stepOpponent(long[] packed, int i, Random random) {
+		int cell = getOpponentCell(packed, i);
+		int nextCell = stepper.stepOpponent(i, cell, obstacleModeCells,
+				random);
+		if (nextCell != cell) {
+			packed[KEY] ^= keys.opponent(i, cell) ^ keys.opponent(i, nextCell);
+			packed[opponentOffset + i] = nextCell;
+		}
+	}
+
+	/**
+	 * Mirrors RaceSimTools.getStatus
+	 */
+	private RaceState.Status computeStatus(long[] packed) {
+		for (int i = 0; i < numPlayers; i++) {
+			if (cellTypes[getPlayerCell(packed, i)] == Track.CellType.GOAL) {
+				return RaceState.Status.WON;
+			}
+		}
+		for (int i = 0; i < numOpponents; i++) {
+			if (cellTypes[getOpponentCell(packed, i)] == Track.CellType.GOAL) {
+				return RaceState.Status.LOST;
+			}
+		}
+		long turnNo = packed[TURN];
+		if (numOpponents == 0) {
+			if (turnNo > 2 * numCols) {
+				return RaceState.Status.LOST;
+			}
+		} else {
+			if (turnNo > 100 * numCols) {
+				return RaceState.Status.LOST;
+			}
+		}
+		return RaceState.Status.RACING;
+	}
+
+	/**
+	 * Returns the cell types of a track in cell index order
+	 * @param track
+	 * @return cell types
+	 */
+	static Track.CellType[] cellTypes(Track track) {
+		int numCols = track.getNumCols();
+		Track.CellType[] cellTypes =
+				new Track.CellType[track.getNumRows() * numCols];
+		for (int cell = 0; cell < cellTypes.length; cell++) {
+			cellTypes[cell] = track.getCellType(cell / numCols,
+					cell % numCols);
+		}
+		return cellTypes;
+	}
+
+	private int cellIndex(GridCell g) {
+		return g.getRow() * numCols + g.getCol();
+	}
+
+	private GridCell toGridCell(int cell) {
+		return track.getCell(cell);
+	}
+
+	public int getTurnNo(long[] packed) {
+		return (int) packed[TURN];
+	}
+
+	public RaceState.Status getStatus(long[] packed) {
+		return STATUSES[(int) packed[STATUS]];
+	}
+
+	public long getZobristKey(long[] packed) {
+		return packed[KEY];
+	}
+
+	public int getPlayerCell(long[] packed, int i) {
+		return (int) (packed[PLAYERS + i] & CELL_MASK);
+	}
+
+	public boolean isPlayerObstacle(long[] packed, int i) {
+		return (packed[PLAYERS + i] & OBSTACLE_FLAG) != 0;
+	}
+
+	public double getPlayerDamage(long[] packed, int i) {
+		return Double.longBitsToDouble(packed[damageOffset + i]);
+	}
+
+	public int getOpponentCell(long[] packed, int i) {
+		return (int) packed[opponentOffset + i];
+	}
+
+	public boolean hasAppeared(long[] packed, int i) {
+		return (packed[distractorOffset + (i >>> 6)] & (1L << i)) != 0;
+	}
+
+	public int getNumPlayers() {
+		return numPlayers;
+	}
+
+	public int getStateLength() {
+		return stateLength;
+	}
+
+	public Track getTrack() {
+		return track;
+	}
+}
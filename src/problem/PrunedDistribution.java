@@ -0,0 +1,68 @@
+package problem;
+
+import java.util.Map;
+
+/**
+ * A successor distribution with its unlikely outcomes cut off, as returned by
+ * RaceSimTools.prunedNextStates. Keeps track of how much probability mass was
+ * dropped so that callers can either renormalise or bound their error.
+ */
+public class PrunedDistribution {
+
+	private Map<RaceState, Double> probabilities;
+	private double droppedMass;
+
+	/**
+	 * Constructor
+	 * @param probabilities The kept outcomes
+	 * @param droppedMass Total probability of the outcomes that were cut off
+	 */
+	public PrunedDistribution(Map<RaceState, Double> probabilities,
+			double droppedMass) {
+		this.probabilities = probabilities;
+		this.droppedMass = droppedMass;
+	}
+
+	/**
+	 * Scales the kept outcomes up so that they sum to 1. Does nothing if
+	 * every outcome was dropped.
+	 */
+	public void renormalise() {
+		double kept = getKeptMass();
+		if (kept <= 0) {
+			return;
+		}
+		for (Map.Entry<RaceState, Double> entry : probabilities.entrySet()) {
+			entry.setValue(entry.getValue() / kept);
+		}
+	}
+
+	/**
+	 * Returns the kept outcomes and their probabilities
+	 * @return Map<RaceState, Double> where the Double is the probability
+	 */
+	public Map<RaceState, Double> getProbabilities() {
+		return probabilities;
+	}
+
+	/**
+	 * Returns the total probability of the kept outcomes, before any
+	 * renormalisation
+	 * @return kept mass
+	 */
+	public double getKeptMass() {
+		return 1.0 - droppedMass;
+	}
+
+	/**
+	 * Returns the total probability of the outcomes that were cut off
+	 * @return dropped mass
+	 */
+	public double getDroppedMass() {
+		return droppedMass;
+	}
+
+	public int size() {
+		return probabilities.size();
+	}
+}
@@ -18,9 +18,24 @@ public class RaceSim {
 	private List<ArrayList<Action>> actionHistory;
 	private Track track;
 	private double totalDamageCost;
+	/** Packed simulator and packed copy of the current state */
+	private PackedRaceSim packedSim;
+	private long[] packedState;
+	private Action[] actionBuffer;
 	
 	public RaceSim(RaceState startState, Track track) {
-		random = new Random();
+		this(startState, track, new SplitRandom());
+	}
+	
+	/**
+	 * Creates a simulator that draws all of its outcomes from random, so
+	 * that a seeded generator makes the race replayable
+	 * @param startState
+	 * @param track
+	 * @param random
+	 */
+	public RaceSim(RaceState startState, Track track, Random random) {
+		this.random = random;
 		stateHistory = new ArrayList<RaceState>();
 		stateHistory.add(startState);
 		actionHistory = new ArrayList<ArrayList<Action>>();
@@ -30,10 +45,15 @@ public class RaceSim {
 	
 	public RaceSim(List<RaceState> stateHistory,
 			List<ArrayList<Action>> actionHistory, Track track) {
+		this(stateHistory, actionHistory, track, new SplitRandom());
+	}
+	
+	public RaceSim(List<RaceState> stateHistory,
+			List<ArrayList<Action>> actionHistory, Track track, Random random) {
 		this.stateHistory = stateHistory;
 		this.actionHistory = actionHistory;
 		this.track = track;
-		random = new Random();
+		this.random = random;
 		totalDamageCost = 0;
 		for (RaceState r : stateHistory) {
 			totalDamageCost += r.getTotalDamageCost();
@@ -41,15 +61,27 @@ public class RaceSim {
 	}
 	
 	/**
-	 * Samples a new RaceState and adds it to the stateHistory
+	 * Samples a new RaceState with the packed simulator and adds it to the
+	 * stateHistory
 	 * @param actions
 	 */
 	public void stepTurn(List<Action> actions) {
 		if (getCurrentStatus() != RaceState.Status.RACING) {
 			System.out.println("ERROR: Cannot step as race is over.");
 		}
-		stateHistory.add(RaceSimTools.sampleNextState(
-				getCurrentState(), actions, track, random));
+		if (packedSim == null) {
+			packedSim = new PackedRaceSim(track, getCurrentState());
+			packedState = packedSim.pack(getCurrentState());
+			actionBuffer = new Action[packedSim.getNumPlayers()];
+		}
+		if (actions.size() != actionBuffer.length) {
+			System.out.println("ERROR: Mismatch between number of actions and "
+					+ "players.");
+			return;
+		}
+		actionBuffer = actions.toArray(actionBuffer);
+		packedSim.step(packedState, actionBuffer, random);
+		stateHistory.add(packedSim.unpack(packedState));
 		ArrayList<Action> copy = new ArrayList<Action>();
 		copy.addAll(actions);
 		actionHistory.add(copy);
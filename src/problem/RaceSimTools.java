@@ -3,7 +3,6 @@ package problem;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
 
@@ -58,6 +57,22 @@ public class RaceSimTools {
 	
 	
 	
+	/**
+	 * As isValid, with the cells of players in obstacle mode as a CellSet
+	 * @param g The GridCell to check
+	 * @param track
+	 * @param isWild
+	 * @param extraObstacles See isObstacle
+	 * @return true if g is valid
+	 */
+	public static boolean isValid(GridCell g, Track track, boolean isWild,
+			CellSet extraObstacles) {
+		if (!withinBounds(g, track)) {
+			return false;
+		}
+		return isWild || !isObstacle(g, track, extraObstacles);
+	}
+	
 	/**
 	 * Returns true if a GridCell is within the map borders
 	 * @param g The GridCell to check
@@ -80,10 +95,23 @@ public class RaceSimTools {
 	 * @return true if there is an obstacle at g or if g is out of bounds
 	 */
 	public static boolean isObstacle(GridCell g, Track track) {
-		if (!withinBounds(g, track)) {
-			return false;
-		}
-		return track.getCellType(g) == Track.CellType.OBSTACLE;
+		
+		// Cells outside the map have the border code, not the obstacle code
+		return track.getCellCode(g.getRow(), g.getCol()) == Track.OBSTACLE_CODE;
+	}
+	
+	/**
+	 * Returns true if a GridCell is an obstacle and not in extraObstacles.
+	 * As in the List version, a cell in extraObstacles is never an obstacle.
+	 * @param g The GridCell to check
+	 * @param track
+	 * @param extraObstacles Cells of player cycles in obstacle mode
+	 * @return true if there is an obstacle at g
+	 */
+	public static boolean isObstacle(GridCell g, Track track,
+			CellSet extraObstacles) {
+		return track.getCellCode(g.getRow(), g.getCol()) == Track.OBSTACLE_CODE
+				&& !extraObstacles.contains(g);
 	}
 	
 	public static boolean isObstacle(GridCell g, Track track, 
@@ -96,7 +124,7 @@ public class RaceSimTools {
 				return false;
 			}
 		}
-		return track.getCellType(g) == Track.CellType.OBSTACLE;
+		return track.getCellCode(g.getRow(), g.getCol()) == Track.OBSTACLE_CODE;
 	}
 	
 	/**
@@ -126,23 +154,29 @@ public class RaceSimTools {
 		
 		// Generate next turn's player states
 		boolean adv1Plus = state.getPlayers().size() > 1;
+		CellSet activeDistractors = activeDistractorCells(newDistractors,
+				track);
 		List<Player> newPlayers = new ArrayList<Player>();
 		for (int i = 0; i < actions.size(); i++) {
 			Player player = state.getPlayers().get(i);
 			newPlayers.add(sampleNextPlayer(player, track,
-					newDistractors, actions.get(i), random, adv1Plus));
+					activeDistractors, actions.get(i), random, adv1Plus));
 		}
 	
 		// Generate next turn's opponent states
+		CellSet extraObstacles = obstacleModeCells(newPlayers, track);
 		List<Opponent> newOpponents = new ArrayList<Opponent>();
 		for (Opponent o : state.getOpponents()) {
-			newOpponents.add(sampleNextOpponent(o, newPlayers, track, random));
+			newOpponents.add(sampleNextOpponent(o, extraObstacles, track,
+					random));
 		}
 			
 		RaceState.Status status = getStatus(newPlayers, newOpponents, track,
 				state.getTurnNo() + 1);
+		long key = track.getZobristKeys().update(state.getZobristKey(track),
+				state, newPlayers, newOpponents, newDistractors);
 		return new RaceState(newPlayers, newOpponents, newDistractors, status,
-				state.getTurnNo() + 1);
+				state.getTurnNo() + 1, track, key);
 	}
 	
 	/**
@@ -174,9 +208,40 @@ public class RaceSimTools {
 	public static Player sampleNextPlayer(Player player, Track track,
 			List<Distractor> distractors, Action action, Random random, 
 			boolean adv1Plus) {
-		Map<Player, Double> np = nextPlayers(player, action, track, distractors,
+		return sampleNextPlayer(player, track,
+				activeDistractorCells(distractors, track), action, random,
 				adv1Plus);
-		return chooseRandom(np, random);
+	}
+	
+	/**
+	 * As sampleNextPlayer, with the cells of the appeared distractors as a
+	 * CellSet
+	 * @param player
+	 * @param track
+	 * @param activeDistractors See activeDistractorCells
+	 * @param action
+	 * @param random A random number generator
+	 * @param adv1Plus
+	 * @return new randomly selected player state
+	 */
+	public static Player sampleNextPlayer(Player player, Track track,
+			CellSet activeDistractors, Action action, Random random,
+			boolean adv1Plus) {
+		
+		// Sample straight from the compiled outcomes of the effective action
+		TransitionTable table = track.getTransitionTable(player.getCycle());
+		action = table.normalise(action, player.isObstacle(), adv1Plus);
+		int cell = player.getPosition().getRow() * track.getNumCols()
+				+ player.getPosition().getCol();
+		int i = table.sample(cell, action, random.nextDouble());
+		int next = table.getNextCell(i);
+		GridCell g = track.getCell(next);
+		double damage = table.getDamage(i);
+		if (activeDistractors.contains(next)) {
+			damage += getDistractorDamage(player.getCycle());
+		}
+		return new Player(player.getId(), player.getCycle(), g, damage,
+				table.getNextObstacle(i, player.isObstacle()));
 	}
 	
 	/**
@@ -189,13 +254,36 @@ public class RaceSimTools {
 	 */
 	public static Opponent sampleNextOpponent(Opponent opponent, 
 			List <Player> players, Track track, Random random) {
-		Map<Opponent, Double> no = nextOpponents(opponent, players, track);
-		return chooseRandom(no, random);		
+		return sampleNextOpponent(opponent, obstacleModeCells(players, track),
+				track, random);
+	}
+	
+	/**
+	 * As sampleNextOpponent, with the cells of the players in obstacle mode
+	 * as a CellSet
+	 * @param opponent
+	 * @param extraObstacles See obstacleModeCells
+	 * @param track
+	 * @param random A random number generator
+	 * @return new randomly selected opponent state
+	 */
+	public static Opponent sampleNextOpponent(Opponent opponent,
+			CellSet extraObstacles, Track track, Random random) {
+		
+		// Draw the action from the compiled policy, then move
+		OpponentTable table = track.getOpponentTable(opponent.getPolicy());
+		GridCell currentPos = opponent.getPosition();
+		Action action = table.sample(currentPos.getRow() * track.getNumCols()
+				+ currentPos.getCol(), random.nextDouble());
+		GridCell g = furthestMove(currentPos, action, track, extraObstacles,
+				false);
+		return new Opponent(opponent.getId(), opponent.getPolicy(), g);
 	}
 	
 	/**
 	 * Returns a probability distribution over the next possible states. 
-	 * Essentially a transition probability function. WARNING: quite untested
+	 * Essentially a transition probability function. Outcomes with zero
+	 * probability are left out.
 	 * @param state The current RaceState
 	 * @param actions List of actions (one for each player)
 	 * @param track
@@ -204,141 +292,109 @@ public class RaceSimTools {
 	 */
 	public static Map<RaceState, Double> nextStates(RaceState state,
 			List<Action> actions, Track track, Random random) {
-
-		int numDistractors = state.getDistractors().size();
-		int numPlayers = state.getPlayers().size();
-		int numOpponents = state.getOpponents().size();
-		boolean adv1Plus = numPlayers > 1;
+		return nextStates(state, actions, track, false);
+	}
+	
+	/**
+	 * Returns the distribution over next states, optionally over the
+	 * decision-relevant factors only. See forEachNextState.
+	 * @param state The current RaceState
+	 * @param actions List of actions (one for each player)
+	 * @param track
+	 * @param marginalise If true, sum out the irrelevant distractors
+	 * @return Map<RaceState, Double> where the Double is the probability
+	 */
+	public static Map<RaceState, Double> nextStates(RaceState state,
+			List<Action> actions, Track track, boolean marginalise) {
+		final Map<RaceState, Double> result = new HashMap<RaceState, Double>();
+		boolean ok = forEachNextState(state, actions, track, marginalise,
+				new SuccessorVisitor() {
+			public void visit(RaceState newState, double probability) {
+				Double p = result.get(newState);
+				result.put(newState, p == null ? probability : p + probability);
+			}
+		});
+		return ok ? result : null;
+	}
+	
+	/**
+	 * Streams the next possible states and their probabilities to a visitor
+	 * without holding the joint distribution in memory. Outcomes are not
+	 * merged, so a state may be visited several times; nextStates adds them
+	 * up. Outcomes with zero probability are skipped.
+	 * @param state The current RaceState
+	 * @param actions List of actions (one for each player)
+	 * @param track
+	 * @param visitor Receives each (state, probability) pair
+	 * @return false if the actions do not match the players
+	 */
+	public static boolean forEachNextState(RaceState state,
+			List<Action> actions, Track track, SuccessorVisitor visitor) {
+		return forEachNextState(state, actions, track, false, visitor);
+	}
+	
+	/**
+	 * As forEachNextState, optionally marginalising out the distractors that
+	 * cannot affect any player this turn. In that mode a distractor no player
+	 * can land on is reported as not appeared with probability 1. Player,
+	 * opponent and status distributions are unchanged, so the successors can
+	 * be expanded for further turns.
+	 * @param state The current RaceState
+	 * @param actions List of actions (one for each player)
+	 * @param track
+	 * @param marginalise If true, sum out the irrelevant distractors
+	 * @param visitor Receives each (state, probability) pair
+	 * @return false if the actions do not match the players
+	 */
+	public static boolean forEachNextState(RaceState state,
+			List<Action> actions, Track track, boolean marginalise,
+			SuccessorVisitor visitor) {
 		
 		// Check number of actions matches number of player cycles
-		if (actions.size() != numPlayers) {
+		if (actions.size() != state.getPlayers().size()) {
 			System.out.println("ERROR: Mismatch between number of actions and "
 					+ "players.");
-			return null;
+			return false;
 		}
-
-		// Build a tree to get all the possible combinations of next states
-		Node<Actor> root = new Node<Actor>();
-		ArrayList<Node<Actor>> leaves = new ArrayList<Node<Actor>>();
-		leaves.add(root);
-		ArrayList<Double> leafProb = new ArrayList<Double>();
-		leafProb.add(1.0);
-		
-		// Probability distributions over next distractor states
-		for (Distractor d : state.getDistractors()) {
-			Map<Distractor, Double> nd = nextDistractors(d);
-			ArrayList<Node<Actor>> newLeaves = new ArrayList<Node<Actor>>();
-			ArrayList<Double> newLeafProb = new ArrayList<Double>();
-			for (int i = 0; i < leaves.size(); i++) {
-				Node<Actor> parent = leaves.get(i);
-				for (Map.Entry<Distractor, Double> entry : nd.entrySet()) {
-					Node<Actor> child = new Node<Actor>(entry.getKey());
-					parent.addChild(child);
-					newLeaves.add(child);
-					newLeafProb.add(leafProb.get(i) * entry.getValue());
-				}
-			}
-			leaves = newLeaves;	
-			leafProb = newLeafProb;
+		new NextStateEnumerator(state, actions, track, marginalise)
+				.enumerate(visitor);
+		return true;
+	}
+	
+	/**
+	 * Returns an approximation of nextStates with at most maxOutcomes states,
+	 * each with probability at least epsilon. The work per call is bounded by
+	 * maxOutcomes rather than by the size of the joint distribution. The
+	 * kept states are found by a beam search over the actors, so on rare
+	 * occasions a slightly more likely state than one kept is dropped.
+	 * @param state The current RaceState
+	 * @param actions List of actions (one for each player)
+	 * @param track
+	 * @param maxOutcomes Maximum number of states to keep
+	 * @param epsilon Outcomes less likely than this are dropped
+	 * @return the kept states and the dropped mass, or null if the actions
+	 * do not match the players
+	 */
+	public static PrunedDistribution prunedNextStates(RaceState state,
+			List<Action> actions, Track track, int maxOutcomes,
+			double epsilon) {
+		if (actions.size() != state.getPlayers().size()) {
+			System.out.println("ERROR: Mismatch between number of actions and "
+					+ "players.");
+			return null;
 		}
-		
-		// Probability distributions over next player states
-		// Not independent to current distractor states
-		for (int i = 0; i < numPlayers; i++) {
-			Player currentPlayer = state.getPlayers().get(i);
-			ArrayList<Node<Actor>> newLeaves = new ArrayList<Node<Actor>>();
-			ArrayList<Double> newLeafProb = new ArrayList<Double>();
-			for (int j = 0; j < leaves.size(); j++) {
-				
-				// Get distractor states for this leaf's ancestry
-				Node<Actor> parent = leaves.get(j);
-				List<Distractor> ancDistractors = new ArrayList<Distractor>();
-				List<Actor> ancActors = parent.getDataAncestry();
-				ListIterator<Actor> it = ancActors.listIterator();
-				it.next();	// Ignore root dummy
-				for (int k = 0; k < numDistractors; k++) {
-					ancDistractors.add((Distractor) it.next());
-				}
-				
-				// Generate probability distribution over next player states
-				Map<Player, Double> np = nextPlayers(currentPlayer,
-						actions.get(i), track, ancDistractors, adv1Plus);
-
-				// Add a new child to this leaf for each possible next player state
-				for (Map.Entry<Player, Double> entry : np.entrySet()) {
-					Node<Actor> child = new Node<Actor>(entry.getKey());
-					parent.addChild(child);
-					newLeaves.add(child);
-					newLeafProb.add(leafProb.get(j) * entry.getValue());
-				}
-			}
-			leaves = newLeaves;			
-			leafProb = newLeafProb;
+		if (maxOutcomes < 1) {
+			maxOutcomes = 1;
 		}
-		
-		// Probability distributions over next opponent states
-		// Not independent to current player states
-		for (Opponent o : state.getOpponents()) {
-			ArrayList<Node<Actor>> newLeaves = new ArrayList<Node<Actor>>();
-			ArrayList<Double> newLeafProb = new ArrayList<Double>();
-			for (int i = 0; i < leaves.size(); i++) {
-				
-				// Get player states for this leaf's ancestry
-				Node<Actor> parent = leaves.get(i);
-				List<Player> ancPlayers = new ArrayList<Player>();
-				List<Actor> ancActors = parent.getDataAncestry();
-				ListIterator<Actor> it = ancActors.listIterator(
-						1 + numDistractors);
-				for (int j = 0; j < numPlayers; j++) {
-					ancPlayers.add((Player) it.next());
-				}
-				Map<Opponent, Double> no = nextOpponents(o, ancPlayers, track);
-				for (Map.Entry<Opponent, Double> entry : no.entrySet()) {
-					Node<Actor> child = new Node<Actor>(entry.getKey());
-					parent.addChild(child);
-					newLeaves.add(child);
-					newLeafProb.add(leafProb.get(i) * entry.getValue());
-				}
+		final Map<RaceState, Double> result = new HashMap<RaceState, Double>();
+		double dropped = new NextStateEnumerator(state, actions, track, false)
+				.enumeratePruned(maxOutcomes, epsilon, new SuccessorVisitor() {
+			public void visit(RaceState newState, double probability) {
+				Double p = result.get(newState);
+				result.put(newState, p == null ? probability : p + probability);
 			}
-			leaves = newLeaves;	
-			leafProb = newLeafProb;
-		}
-		
-		// Construct the result
-		Map<RaceState, Double> result = new HashMap<RaceState, Double>();
-		for (int i = 0; i < leaves.size(); i++) {
-			Node<Actor> leaf = leaves.get(i);
-			double probability = leafProb.get(i);
-			List<Node<Actor>> ancestry = leaf.getAncestry();
-			ListIterator<Node<Actor>> it = ancestry.listIterator();
-			it.next();  // Ignore dummy root
-			List<Distractor> stateDistractors = new ArrayList<Distractor>();
-			List<Player> statePlayers = new ArrayList<Player>();
-			List<Opponent> stateOpponents = new ArrayList<Opponent>();
-			for (int j = 0; j < numDistractors; j++) {
-				Distractor d = (Distractor) it.next().getData();
-				stateDistractors.add(d);
-			}
-			for (int j = 0; j < numPlayers; j++) {
-				Player p = (Player) it.next().getData();
-				statePlayers.add(p);
-			}
-			for (int j = 0; j < numOpponents; j++) {
-				Opponent o = (Opponent) it.next().getData();
-				stateOpponents.add(o);
-			}
-			
-			RaceState.Status status = getStatus(statePlayers, stateOpponents,
-					track, state.getTurnNo() + 1);
-			RaceState newState = new RaceState(statePlayers, stateOpponents,
-					stateDistractors, status, state.getTurnNo() + 1);
-			if (result.containsKey(newState)) {
-				result.put(newState, result.get(newState) + probability);
-			} else {
-				result.put(newState, probability);				
-			}
-		}
-		return result;
+		});
+		return new PrunedDistribution(result, dropped);
 	}
 	
 	/**
@@ -373,141 +429,30 @@ public class RaceSimTools {
 	public static Map<Player, Double> nextPlayers(Player player, Action action,
 			Track track, List<Distractor> distractors, boolean adv1Plus) {
 		
-		// Ensure action is valid for this player's cycle
-		Cycle.Speed speed = player.getCycle().getSpeed();
-		if (action == Action.FM && speed == Cycle.Speed.SLOW) {
-			action = Action.FS;
-		} else if (action == Action.FF && speed == Cycle.Speed.MEDIUM) {
-			action = Action.FM;
-		} else if (action == Action.FF && speed == Cycle.Speed.SLOW) {
-			action = Action.FS;
-		} else if (player.isObstacle() && action != Action.TC) {
-			action = Action.ST;
-		} else if (action == Action.TO && !adv1Plus) {
-			action = Action.ST;
-		}
-				
-		boolean isWild = player.getCycle().isWild();
+		// Look up the compiled outcomes of the effective action
+		TransitionTable table = track.getTransitionTable(player.getCycle());
+		action = table.normalise(action, player.isObstacle(), adv1Plus);
+		int cell = player.getPosition().getRow() * track.getNumCols()
+				+ player.getPosition().getCol();
+		int end = table.getEnd(cell, action);
+		double distractorDamage = getDistractorDamage(player.getCycle());
+		CellSet activeDistractors = activeDistractorCells(distractors, track);
 		Map<Player, Double> result = new HashMap<Player, Double>();
-		
-		// Temporary variables: probability, next grid cell, damage cost
-		ArrayList<Double> nextProbs = new ArrayList<Double>();
-		ArrayList<GridCell> nextCells = new ArrayList<GridCell>();
-		ArrayList<Double> nextDamages = new ArrayList<Double>();
-		ArrayList<Boolean> nextIsObs = new ArrayList<Boolean>();
-
-		if (action == Action.TO) {
+		for (int i = table.getStart(cell, action); i < end; i++) {
+			int next = table.getNextCell(i);
+			GridCell g = track.getCell(next);
 			
-			// Turn into obstacle action. Slight chance of failure
-			nextProbs.add(TO_SUCCESS_PROBABILITY);
-			nextProbs.add(1 - TO_SUCCESS_PROBABILITY);
-			nextCells.add(player.getPosition());
-			nextCells.add(player.getPosition());
-			nextDamages.add(0.0);
-			nextDamages.add(0.0);
-			nextIsObs.add(true);
-			nextIsObs.add(false);
-		} else if (action == Action.TC) {
-			
-			// Turn back into cycle action
-			nextProbs.add(1.0);
-			nextCells.add(player.getPosition());
-			nextDamages.add(0.0);
-			nextIsObs.add(false);			
-		} else if (action == Action.NE || action == Action.SE) { 
-			
-			// Error exists for NE and SE moves. 4 possible results.
-			nextProbs.add(0.1);
-			nextProbs.add(0.1);
-			nextProbs.add(0.1);
-			nextProbs.add(0.7);
-			for (int i = 0; i < 4; i++) {
-				nextDamages.add(0.0);
-				nextIsObs.add(false);				
-			}
-			if (action == Action.NE) {
-				nextCells.add(player.getPosition().shifted(Direction.N));
-				nextCells.add(player.getPosition().shifted(Direction.E));
-				nextCells.add(player.getPosition());
-				nextCells.add(player.getPosition().shifted(Direction.NE));
-			} else if (action == Action.SE) {
-				nextCells.add(player.getPosition().shifted(Direction.S));
-				nextCells.add(player.getPosition().shifted(Direction.E));
-				nextCells.add(player.getPosition());
-				nextCells.add(player.getPosition().shifted(Direction.SE));
-			}
-			for (int i = 0; i < 4; i++) {
-				if (!withinBounds(nextCells.get(i), track)) {
-					nextCells.set(i, player.getPosition());
-				} else if (isObstacle(nextCells.get(i), track)) {
-					nextDamages.set(i, getObstacleDamage(player.getCycle()));
-					if (!isWild) {
-						nextCells.set(i, player.getPosition());
-					}
-				}
-			}
-		} else if (action == Action.ST){
-			
-			// Handle ST action
-			nextProbs.add(1.0);
-			nextCells.add(player.getPosition());
-			nextDamages.add(0.0);
-			nextIsObs.add(player.isObstacle());			
-		} else {
-
-			// Handle FS, FM, FF
-			int maxMoves;
-			switch (action) {
-			case FS:
-				maxMoves = 1;
-				break;
-			case FM: 
-				maxMoves = 2;
-				break;
-			case FF:
-				maxMoves = 3;
-				break;
-			default:
-				maxMoves = 0;
-				break;
-			}
-			double damageCost = 0.0;
-			GridCell temp = player.getPosition();
-			for (int i = 0; i < maxMoves; i++) {
-				GridCell nextTemp = temp.shifted(Direction.E);
-				if (!withinBounds(nextTemp, track)) {
-					break;
-				}
-				if (isObstacle(nextTemp, track)) {
-					damageCost += getObstacleDamage(player.getCycle());
-					if (!isWild) {
-						break;
-					}
-				}
-				temp = nextTemp;
+			// Damage from distractors
+			double damage = table.getDamage(i);
+			if (activeDistractors.contains(next)) {
+				damage += distractorDamage;
 			}
-			nextProbs.add(1.0);
-			nextCells.add(temp);
-			nextDamages.add(damageCost);
-			nextIsObs.add(false);
-		}
-
-		// Damage from distractors
-		for (int i = 0; i < nextCells.size(); i++) {
-			if (isDistracted(nextCells.get(i), distractors)) {
-				double d = nextDamages.get(i);
-				nextDamages.set(i, d + getDistractorDamage(player.getCycle()));
-			}
-		}
-		
-		// Some results could be the same. Add up those probabilities
-		for (int i = 0; i < nextCells.size(); i++) {
-			Player p = new Player(player.getId(), player.getCycle(),
-					nextCells.get(i), nextDamages.get(i), nextIsObs.get(i));
+			Player p = new Player(player.getId(), player.getCycle(), g, damage,
+					table.getNextObstacle(i, player.isObstacle()));
 			if (result.containsKey(p)) {
-				result.put(p, result.get(p) + nextProbs.get(i));
+				result.put(p, result.get(p) + table.getProbability(i));
 			} else {
-				result.put(p, nextProbs.get(i));
+				result.put(p, table.getProbability(i));
 			}
 		}
 		
@@ -530,12 +475,7 @@ public class RaceSimTools {
 			List<Player> players, Track track) {
 
 		// Get extra obstacles due to player cycles being in obstacle mode
-		List<GridCell> extraObstacles = new ArrayList<GridCell>();
-		for (Player p : players) {
-			if (p.isObstacle()) {
-				extraObstacles.add(p.getPosition());
-			}
-		}
+		CellSet extraObstacles = obstacleModeCells(players, track);
 		
 		Map<Opponent, Double> result = new HashMap<Opponent, Double>();		
 		RandomPolicy policy = opponent.getPolicy();
@@ -575,50 +515,98 @@ public class RaceSimTools {
 	 */
 	public static GridCell furthestMove(GridCell currentPos, Action action,
 			Track track, List<GridCell> extraObstacles, boolean isWild) {
+		CellSet cells = new CellSet(track);
+		for (GridCell g : extraObstacles) {
+			cells.add(g);
+		}
+		return furthestMove(currentPos, action, track, cells, isWild);
+	}
+	
+	/**
+	 * As furthestMove, with the extra obstacles as a CellSet
+	 * @param currentPos
+	 * @param action
+	 * @param track
+	 * @param extraObstacles See obstacleModeCells
+	 * @param isWild
+	 * @return
+	 */
+	public static GridCell furthestMove(GridCell currentPos, Action action,
+			Track track, CellSet extraObstacles, boolean isWild) {
+		if (!withinBounds(currentPos, track)) {
+			return currentPos;
+		}
+		int cell = currentPos.getRow() * track.getNumCols()
+				+ currentPos.getCol();
+		int next = furthestMove(cell, action, track, extraObstacles, isWild);
+		return next == cell ? currentPos : track.getCell(next);
+	}
+	
+	/**
+	 * As furthestMove, on cell indices (row * numCols + col). The one
+	 * implementation of the move, shared by the simulators that keep cells
+	 * as indices.
+	 * @param cell Index of the current cell, within the track
+	 * @param action
+	 * @param track
+	 * @param extraObstacles See obstacleModeCells
+	 * @param isWild
+	 * @return index of the resulting cell
+	 */
+	public static int furthestMove(int cell, Action action, Track track,
+			CellSet extraObstacles, boolean isWild) {
+		int numCols = track.getNumCols();
+		int row = cell / numCols;
+		int col = cell % numCols;
 		
 		// If currently on top of an obstacle, can't move
-		if (!isValid(currentPos, track, isWild, extraObstacles)) {
-			return currentPos;
+		if (!isValid(row, col, track, isWild, extraObstacles)) {
+			return cell;
 		}
 		
-		if (action == Action.NE) {
-			GridCell temp = currentPos.shifted(Direction.NE);
-			if (isValid(temp, track, isWild, extraObstacles)) {
-				return temp;
-			}
-			return currentPos;
-		} else if (action == Action.SE) {
-			GridCell temp = currentPos.shifted(Direction.SE);
-			if (isValid(temp, track, isWild, extraObstacles)) {
-				return temp;
-			}
-			return currentPos;
-		} else {
-			int maxMoves;
-			switch (action) {
-			case FS:
-				maxMoves = 1;
-				break;
-			case FM: 
-				maxMoves = 2;
-				break;
-			case FF:
-				maxMoves = 3;
-				break;
-			default:
-				maxMoves = 0;
+		if (action == Action.NE || action == Action.SE) {
+			int nextRow = action == Action.NE ? row - 1 : row + 1;
+			if (isValid(nextRow, col + 1, track, isWild, extraObstacles)) {
+				return nextRow * numCols + col + 1;
+			}
+			return cell;
+		}
+		int maxMoves;
+		switch (action) {
+		case FS:
+			maxMoves = 1;
+			break;
+		case FM: 
+			maxMoves = 2;
+			break;
+		case FF:
+			maxMoves = 3;
+			break;
+		default:
+			maxMoves = 0;
+			break;
+		}
+		int nextCol = col;
+		for (int i = 0; i < maxMoves; i++) {
+			if (!isValid(row, nextCol + 1, track, isWild, extraObstacles)) {
 				break;
 			}
-			GridCell temp = currentPos;
-			for (int i = 0; i < maxMoves; i++) {
-				GridCell next = temp.shifted(Direction.E);
-				if (!isValid(next, track, isWild, extraObstacles)) {
-					break;
-				}
-				temp = next;
-			}
-			return temp;
+			nextCol++;
+		}
+		return row * numCols + nextCol;
+	}
+	
+	/**
+	 * As isValid, for a cell given by row and column
+	 */
+	private static boolean isValid(int row, int col, Track track,
+			boolean isWild, CellSet extraObstacles) {
+		if (row < 0 || row >= track.getNumRows() || col < 0
+				|| col >= track.getNumCols()) {
+			return false;
 		}
+		return isWild || track.getCellCode(row, col) != Track.OBSTACLE_CODE
+				|| extraObstacles.contains(row * track.getNumCols() + col);
 	}
 	
 	/**
@@ -636,6 +624,52 @@ public class RaceSimTools {
 		return false;
 	}	
 	
+	/**
+	 * Returns true if pos is in a set of appeared distractor cells
+	 * @param pos
+	 * @param activeDistractors See activeDistractorCells
+	 * @return true if a distractor is on GridCell pos and hasAppeared == true
+	 */
+	public static boolean isDistracted(GridCell pos,
+			CellSet activeDistractors) {
+		return activeDistractors.contains(pos);
+	}
+	
+	/**
+	 * Returns the cells of the distractors that have appeared
+	 * @param distractors
+	 * @param track
+	 * @return set of cells with an appeared distractor
+	 */
+	public static CellSet activeDistractorCells(List<Distractor> distractors,
+			Track track) {
+		CellSet cells = new CellSet(track);
+		for (Distractor d : distractors) {
+			if (d.hasAppeared()) {
+				cells.add(d.getPosition());
+			}
+		}
+		return cells;
+	}
+	
+	/**
+	 * Returns the cells of the player cycles in obstacle mode, which are the
+	 * extra obstacles for the opponents
+	 * @param players
+	 * @param track
+	 * @return set of cells with a player in obstacle mode
+	 */
+	public static CellSet obstacleModeCells(List<Player> players,
+			Track track) {
+		CellSet cells = new CellSet(track);
+		for (Player p : players) {
+			if (p.isObstacle()) {
+				cells.add(p.getPosition());
+			}
+		}
+		return cells;
+	}
+	
 	/**
 	 * Choose a random key from a Map<K, Double> where the probability of 
 	 * choosing key K is given by the corresponding Double
@@ -731,7 +765,7 @@ public class RaceSimTools {
 		}
 		for (int row = 0; row < track.getNumRows(); row++) {
 			for (int col = 0; col < track.getNumCols(); col++) {
-				GridCell g = new GridCell(row, col);
+				GridCell g = track.getCell(row, col);
 				if (things.containsKey(g)) {
 					ArrayList<String> temp = things.get(g);
 					if (temp.size() > 1) {
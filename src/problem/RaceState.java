@@ -12,6 +12,14 @@ public class RaceState {
 	private List<Distractor> distractors;
 	private Status status;
 	private int turnNo;
+	/** Cached hash code, 0 until computed */
+	private int hash;
+	/**
+	 * Zobrist key and the track it was computed for, null until computed.
+	 * One immutable object, so that a thread reading it never sees a
+	 * key without its track.
+	 */
+	private ZobristKey zobristKey;
 	
 	public RaceState(List<Player> players, List<Opponent> opponents,
 			List<Distractor> distractors) {
@@ -30,6 +38,18 @@ public class RaceState {
 		this.status = status;
 		this.turnNo = turnNo;
 	}
+	
+	/**
+	 * Creates a state whose Zobrist key is already known, e.g. derived
+	 * incrementally from its parent
+	 * @param track The track this state is on, whose keys gave zobristKey
+	 */
+	public RaceState(List<Player> players, List<Opponent> opponents,
+			List<Distractor> distractors, Status status, int turnNo,
+			Track track, long zobristKey) {
+		this(players, opponents, distractors, status, turnNo);
+		this.zobristKey = new ZobristKey(track, zobristKey);
+	}
 
 	public List<Player> getPlayers() {
 		return Collections.unmodifiableList(players);
@@ -51,6 +71,23 @@ public class RaceState {
 		return turnNo;
 	}
 	
+	/**
+	 * Returns the 64-bit Zobrist key of this state, a stable key for
+	 * transposition tables and caches. See ZobristKeys. The key is only
+	 * meaningful on the state's own track; asking with another track
+	 * hashes the state again with that track's keys.
+	 * @param track The track this state is on
+	 * @return Zobrist key
+	 */
+	public long getZobristKey(Track track) {
+		ZobristKey key = zobristKey;
+		if (key == null || key.track != track) {
+			key = new ZobristKey(track, track.getZobristKeys().hash(this));
+			zobristKey = key;
+		}
+		return key.value;
+	}
+	
 	public double getTotalDamageCost() {
 		double sum = 0;
 		for (Player p : players) {
@@ -59,19 +96,40 @@ public class RaceState {
 		return sum;
 	}
 
+	/**
+	 * Hash code, computed once. Costs O(actors) as opponents hash their
+	 * policy by identity.
+	 */
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result
-				+ ((distractors == null) ? 0 : distractors.hashCode());
-		result = prime * result
-				+ ((opponents == null) ? 0 : opponents.hashCode());
-		result = prime * result + ((players == null) ? 0 : players.hashCode());
-		result = prime * result + ((status == null) ? 0 : status.hashCode());
+		int result = hash;
+		if (result == 0) {
+			final int prime = 31;
+			result = 1;
+			result = prime * result
+					+ ((distractors == null) ? 0 : distractors.hashCode());
+			result = prime * result
+					+ ((opponents == null) ? 0 : opponents.hashCode());
+			result = prime * result
+					+ ((players == null) ? 0 : players.hashCode());
+			result = prime * result
+					+ ((status == null) ? 0 : status.hashCode());
+			hash = result;
+		}
 		return result;
 	}
 
+	/** A Zobrist key with the track whose keys computed it */
+	private static final class ZobristKey {
+		private final Track track;
+		private final long value;
+
+		private ZobristKey(Track track, long value) {
+			this.track = track;
+			this.value = value;
+		}
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -81,6 +139,8 @@ public class RaceState {
 		if (getClass() != obj.getClass())
 			return false;
 		RaceState other = (RaceState) obj;
+		if (hashCode() != other.hashCode())
+			return false;
 		if (distractors == null) {
 			if (other.distractors != null)
 				return false;
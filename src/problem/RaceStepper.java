@@ -0,0 +1,135 @@
+package problem;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Samples the moves of the actors of one race over packed cell indices, for
+ * the simulators that keep races in flat arrays (PackedRaceSim and
+ * BatchRaceSim), so that both follow the same transition semantics as
+ * RaceSimTools.sampleNextState. Appeared distractors are read from a bitset
+ * of 64 per long, starting at a given offset into the caller's array.
+ */
+class RaceStepper {
+
+	private Track track;
+	private TransitionTable[] playerTables;
+	private double[] playerDistractorDamage;
+	private OpponentTable[] opponentTables;
+	private double[] appearProbabilities;
+	private int[] distractorCells;
+	/** Cells where some distractor could appear */
+	private CellSet distractorCellSet;
+
+	/**
+	 * Compiles the tables of the actors of a race
+	 * @param track
+	 * @param players
+	 * @param opponents
+	 * @param distractors
+	 */
+	RaceStepper(Track track, List<Player> players, List<Opponent> opponents,
+			List<Distractor> distractors) {
+		this.track = track;
+		int numCols = track.getNumCols();
+		playerTables = new TransitionTable[players.size()];
+		playerDistractorDamage = new double[players.size()];
+		for (int i = 0; i < playerTables.length; i++) {
+			Cycle cycle = players.get(i).getCycle();
+			playerTables[i] = track.getTransitionTable(cycle);
+			playerDistractorDamage[i] = RaceSimTools.getDistractorDamage(cycle);
+		}
+		opponentTables = new OpponentTable[opponents.size()];
+		for (int i = 0; i < opponentTables.length; i++) {
+			opponentTables[i] = track.getOpponentTable(
+					opponents.get(i).getPolicy());
+		}
+		distractorCellSet = track.getDistractorCells();
+		appearProbabilities = new double[distractors.size()];
+		distractorCells = new int[distractors.size()];
+		for (int i = 0; i < appearProbabilities.length; i++) {
+			Distractor d = distractors.get(i);
+			appearProbabilities[i] = d.getAppearProbability();
+			GridCell g = d.getPosition();
+			distractorCells[i] = g.getRow() * numCols + g.getCol();
+		}
+	}
+
+	/**
+	 * Samples whether distractor i appears on the next turn
+	 */
+	boolean sampleAppeared(int i, Random random) {
+		return random.nextDouble() < appearProbabilities[i];
+	}
+
+	/**
+	 * Samples one outcome of player i's action, as RaceSimTools.nextPlayers
+	 * @param i Player index
+	 * @param cell Current cell
+	 * @param isObstacle Current obstacle mode
+	 * @param action
+	 * @param adv1Plus True if the race has more than one player
+	 * @param random
+	 * @return index of the outcome in the player's transition table
+	 */
+	int samplePlayer(int i, int cell, boolean isObstacle, Action action,
+			boolean adv1Plus, Random random) {
+		TransitionTable table = playerTables[i];
+		action = table.normalise(action, isObstacle, adv1Plus);
+		int k = table.getStart(cell, action);
+		if (table.getEnd(cell, action) - k > 1) {
+			k = table.sample(cell, action, random.nextDouble());
+		}
+		return k;
+	}
+
+	int getNextCell(int i, int k) {
+		return playerTables[i].getNextCell(k);
+	}
+
+	boolean getNextObstacle(int i, int k, boolean isObstacle) {
+		return playerTables[i].getNextObstacle(k, isObstacle);
+	}
+
+	/**
+	 * Returns the damage of outcome k of player i, including the damage of
+	 * a distractor that has appeared in the cell moved into
+	 * @param bits Appeared distractor bits
+	 * @param first Offset of the race's first word in bits
+	 */
+	double getDamage(int i, int k, long[] bits, int first) {
+		double damage = playerTables[i].getDamage(k);
+		if (isDistracted(bits, first, playerTables[i].getNextCell(k))) {
+			damage += playerDistractorDamage[i];
+		}
+		return damage;
+	}
+
+	/**
+	 * Samples the cell opponent i moves to, as RaceSimTools.nextOpponents
+	 * @param i Opponent index
+	 * @param cell Current cell
+	 * @param obstacleModeCells Cells of the players in obstacle mode
+	 * @param random
+	 * @return next cell
+	 */
+	int stepOpponent(int i, int cell, CellSet obstacleModeCells,
+			Random random) {
+		Action action = opponentTables[i].sample(cell, random.nextDouble());
+		return RaceSimTools.furthestMove(cell, action, track,
+				obstacleModeCells, false);
+	}
+
+	private boolean isDistracted(long[] bits, int first, int cell) {
+		if (!distractorCellSet.contains(cell)) {
+			return false;
+		}
+		for (int i = 0; i < distractorCells.length; i++) {
+			if (distractorCells[i] == cell
+					&& (bits[first + (i >>> 6)] & (1L << i)) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,8 +1,170 @@
 package problem;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.EnumMap;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
-public class RandomPolicy extends HashMap<GridCell, EnumMap<Action, Double>> {
-	
+/**
+ * An opponent's random policy: for every cell of the track, the probability
+ * of each of the six opponent actions. Stored densely as one double per
+ * (cell, action), in the order of ACTIONS, and shared by every copy of the
+ * opponent.
+ *
+ * For compatibility the policy is also a read-only Map from GridCell to an
+ * EnumMap of action probabilities. The EnumMaps are built on each get, so
+ * hot code should use getProbability instead.
+ */
+public class RandomPolicy extends AbstractMap<GridCell, EnumMap<Action, Double>> {
+
+	/** Opponent actions, in the order they are stored and listed in files */
+	public static final Action[] ACTIONS = {
+		Action.FS, Action.FM, Action.FF, Action.NE, Action.SE, Action.ST };
+
+	private int numRows;
+	private int numCols;
+	/** Probability of ACTIONS[a] at cell index c is at c * 6 + a */
+	private double[] probabilities;
+	/** Cached hash code, 0 until computed */
+	private int hash;
+
+	/**
+	 * Constructor. The array is used directly, not copied.
+	 * @param numRows
+	 * @param numCols
+	 * @param probabilities numRows * numCols * 6 probabilities, see
+	 * getProbability
+	 */
+	public RandomPolicy(int numRows, int numCols, double[] probabilities) {
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.probabilities = probabilities;
+	}
+
+	/**
+	 * Returns the probability of an action at a cell
+	 * @param cell Cell index, row * numCols + col
+	 * @param a Index into ACTIONS
+	 * @return probability as given in the track file
+	 */
+	public double getProbability(int cell, int a) {
+		return probabilities[cell * ACTIONS.length + a];
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumCols() {
+		return numCols;
+	}
+
+	@Override
+	public EnumMap<Action, Double> get(Object key) {
+		if (!containsKey(key)) {
+			return null;
+		}
+		GridCell g = (GridCell) key;
+		return actionMap(g.getRow() * numCols + g.getCol());
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof GridCell)) {
+			return false;
+		}
+		GridCell g = (GridCell) key;
+		return g.getRow() >= 0 && g.getRow() < numRows && g.getCol() >= 0
+				&& g.getCol() < numCols;
+	}
+
+	@Override
+	public int size() {
+		return numRows * numCols;
+	}
+
+	@Override
+	public Set<Entry<GridCell, EnumMap<Action, Double>>> entrySet() {
+		return new AbstractSet<Entry<GridCell, EnumMap<Action, Double>>>() {
+			@Override
+			public Iterator<Entry<GridCell, EnumMap<Action, Double>>>
+					iterator() {
+				return new Iterator<Entry<GridCell, EnumMap<Action, Double>>>() {
+					private int cell = 0;
+
+					@Override
+					public boolean hasNext() {
+						return cell < size();
+					}
+
+					@Override
+					public Entry<GridCell, EnumMap<Action, Double>> next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						GridCell g = new GridCell(cell / numCols,
+								cell % numCols);
+						EnumMap<Action, Double> value = actionMap(cell);
+						cell++;
+						return new SimpleImmutableEntry<GridCell,
+								EnumMap<Action, Double>>(g, value);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return RandomPolicy.this.size();
+			}
+		};
+	}
+
+	private EnumMap<Action, Double> actionMap(int cell) {
+		EnumMap<Action, Double> actionMap =
+				new EnumMap<Action, Double>(Action.class);
+		for (int a = 0; a < ACTIONS.length; a++) {
+			actionMap.put(ACTIONS[a], probabilities[cell * ACTIONS.length + a]);
+		}
+		return actionMap;
+	}
+
+	/**
+	 * Two RandomPolicies are equal if they have the same dimensions and
+	 * probabilities. Compared with any other map, the usual Map equality
+	 * applies.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o instanceof RandomPolicy) {
+			RandomPolicy other = (RandomPolicy) o;
+			return numRows == other.numRows && numCols == other.numCols
+					&& Arrays.equals(probabilities, other.probabilities);
+		}
+		return super.equals(o);
+	}
+
+	/**
+	 * The usual Map hash code, the sum of the entries' hash codes, so that
+	 * it agrees with equals for any map. Computed once.
+	 */
+	@Override
+	public int hashCode() {
+		int result = hash;
+		if (result == 0) {
+			result = super.hashCode();
+			hash = result;
+		}
+		return result;
+	}
 }
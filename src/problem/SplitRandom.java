@@ -0,0 +1,87 @@
+package problem;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * A seedable, splittable random number generator that can be passed anywhere
+ * a java.util.Random is expected. Numbers come from a SplittableRandom, so
+ * there is no locking on each draw, and split() hands out independent
+ * streams for parallel workers. A tree of generators split from one seed is
+ * fully reproducible, provided the splits happen in the same order.
+ *
+ * An instance is not thread safe; give each thread its own split.
+ */
+public class SplitRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	private SplittableRandom source;
+
+	/**
+	 * Creates a generator with an unpredictable seed
+	 */
+	public SplitRandom() {
+		source = new SplittableRandom();
+	}
+
+	/**
+	 * Creates a generator that always produces the same numbers for a seed
+	 * @param seed
+	 */
+	public SplitRandom(long seed) {
+		source = new SplittableRandom(seed);
+	}
+
+	private SplitRandom(SplittableRandom source) {
+		this.source = source;
+	}
+
+	/**
+	 * Returns a new generator whose numbers are independent of this one's.
+	 * Advances this generator.
+	 * @return new generator
+	 */
+	public SplitRandom split() {
+		return new SplitRandom(source.split());
+	}
+
+	/**
+	 * Restarts the sequence from a seed. Also called by the Random
+	 * constructor, before the source exists.
+	 */
+	@Override
+	public void setSeed(long seed) {
+		source = new SplittableRandom(seed);
+	}
+
+	@Override
+	protected int next(int bits) {
+		return source.nextInt() >>> (32 - bits);
+	}
+
+	@Override
+	public int nextInt() {
+		return source.nextInt();
+	}
+
+	@Override
+	public int nextInt(int bound) {
+		return source.nextInt(bound);
+	}
+
+	@Override
+	public long nextLong() {
+		return source.nextLong();
+	}
+
+	@Override
+	public double nextDouble() {
+		return source.nextDouble();
+	}
+
+	@Override
+	public boolean nextBoolean() {
+		return source.nextBoolean();
+	}
+}
@@ -0,0 +1,16 @@
+package problem;
+
+/**
+ * Receives the successors of a race state one at a time, as produced by
+ * RaceSimTools.forEachNextState
+ */
+public interface SuccessorVisitor {
+
+	/**
+	 * Called once per joint outcome. The same state may be visited more than
+	 * once with separate probabilities, which should then be added up.
+	 * @param state A possible next state
+	 * @param probability The probability of this outcome
+	 */
+	public void visit(RaceState state, double probability);
+}
@@ -48,6 +48,8 @@ public class Tour {
 	/** Time spent on each race (milliseconds) */
 	private List<Long> raceTimes;
 	private Long timeStamp;
+	/** Source of every race's randomness. Split, never shared */
+	private SplitRandom random;
 	
 	/** 
 	 * The current status. Status is PREPARING before each race, RACING during
@@ -60,7 +62,22 @@ public class Tour {
 	 * @param setup
 	 */
 	public Tour(Setup setup) {
+		this(setup, new SplitRandom());
+	}
+	
+	/**
+	 * Construct a tour whose races, and any search seeded from
+	 * splitRandom(), replay exactly for the same seed
+	 * @param setup
+	 * @param seed
+	 */
+	public Tour(Setup setup, long seed) {
+		this(setup, new SplitRandom(seed));
+	}
+	
+	private Tour(Setup setup, SplitRandom random) {
 		this.setup = setup;
+		this.random = random;
 		raceNo = 0;
 		maxRaces = 3;
 		money = setup.getStartupMoney();
@@ -260,7 +277,7 @@ public class Tour {
 				track.getDistractors());
 		
 		// Create a new RaceSim for this race
-		raceSims.add(new RaceSim(startState, track));
+		raceSims.add(new RaceSim(startState, track, random.split()));
 		
 		raceNo++;
 		trackHistory.add(track);
@@ -469,6 +486,15 @@ public class Tour {
 		return maxRaces;
 	}
 	
+	/**
+	 * Returns a new random number generator split from the tour's, for
+	 * solvers that want their own runs to replay with the tour's seed
+	 * @return new independent generator
+	 */
+	public SplitRandom splitRandom() {
+		return random.split();
+	}
+	
 	/**
 	 * Returns the number of races completed or in progress
 	 * @return the number of races completed or in progress
@@ -764,7 +790,8 @@ public class Tour {
 				}
 				
 				// Add the race
-				raceSims.add(new RaceSim(stateHistory, actionHistory, track));
+				raceSims.add(new RaceSim(stateHistory, actionHistory, track,
+						random.split()));
 				
 				// Next line is unnecessary
 				line = input.readLine();
@@ -5,9 +5,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Locale;
@@ -31,6 +32,22 @@ public class Track {
 		EMPTY, OBSTACLE, GOAL
 	}
 	
+	/** Cell codes of the padded grid */
+	public static final byte EMPTY_CODE = 0;
+	public static final byte OBSTACLE_CODE = 1;
+	public static final byte GOAL_CODE = 2;
+	/** Code of the sentinel cells outside the map */
+	public static final byte BORDER_CODE = 3;
+	/**
+	 * Width of the sentinel border around the grid. A move reaches at most
+	 * three cells away, so any cell a move can touch is inside the padding.
+	 */
+	public static final int PAD = 3;
+	
+	/** CellType of each cell code. The border reads as an obstacle */
+	private static final CellType[] CODE_TYPES = { CellType.EMPTY,
+		CellType.OBSTACLE, CellType.GOAL, CellType.OBSTACLE };
+	
 	private String fileName;
 	private String fileNameNoPath;
 	private int numRows;
@@ -39,19 +56,51 @@ public class Track {
 	private double registrationFee;
 	private double prize;
 	
-	/** The map, which is a matrix of CellTypes */
-	private ArrayList<ArrayList<CellType>> map;
+	/**
+	 * The map as cell codes, row by row, with a border of PAD sentinel cells
+	 * on every side. See getPaddedIndex.
+	 */
+	private byte[] grid;
+	private int paddedCols;
+	/** Interned GridCells, in padded index order. See getCell */
+	private GridCell[] cells;
+	/** Read-only CellType matrix view of the grid, built on first use */
+	private List<ArrayList<CellType>> mapView;
 	/** Starting locations for the players. Maps string id to GridCell */
 	private Map<String, GridCell> playerStarts;
 	/** Opponents, set to their starting positions */
 	private List<Opponent> opponents;
 	/** Distractors, set to their starting positions */
 	private List<Distractor> distractors;
+	/** Cached hash code, 0 until computed */
+	private int hash;
+	/** Compiled player transitions, indexed by speed and wildness */
+	private TransitionTable[] transitionTables =
+			new TransitionTable[Cycle.Speed.values().length * 2];
+	/** Compiled opponent policies, keyed by policy identity */
+	private Map<RandomPolicy, OpponentTable> opponentTables =
+			new IdentityHashMap<RandomPolicy, OpponentTable>();
+	/** Zobrist keys for race states on this track */
+	private ZobristKeys zobristKeys;
+	/** Precomputed analytics, built on first use */
+	private TrackIndex index;
+	/** Obstacle cells and distractor cells, built on first use */
+	private CellSet obstacleCells;
+	private CellSet distractorCells;
+	/** Tables other packages build for this track, keyed by their type */
+	private Map<Class<?>, Object> caches = new HashMap<Class<?>, Object>();
 	
 	public Track(ArrayList<ArrayList<CellType>> map,
 			Map<String, GridCell> playerStarts, List<Opponent> opponents,
 			List<Distractor> distractors) {
-		this.map = map;
+		numRows = map.size();
+		numCols = numRows == 0 ? 0 : map.get(0).size();
+		initGrid();
+		for (int row = 0; row < numRows; row++) {
+			for (int col = 0; col < numCols; col++) {
+				grid[getPaddedIndex(row, col)] = toCode(map.get(row).get(col));
+			}
+		}
 		this.playerStarts = playerStarts;
 		this.opponents = opponents;
 		this.distractors = distractors;
@@ -84,23 +133,23 @@ public class Track {
 			s.close();
 
 			// Load map and starting positions
-			map = new ArrayList<ArrayList<CellType>>();
+			initGrid();
 			playerStarts = new HashMap<String, GridCell>();
 			Map<String, GridCell> opponentStarts = new HashMap<String, GridCell>();
 			Map<String, GridCell> distractorStarts = new HashMap<String, GridCell>();
 			for (int row = 0; row < numRows; row++) {
 				line = input.readLine();
 				lineNo++;
-				ArrayList<CellType> mapRow = new ArrayList<CellType>();
 				for (int col = 0; col < numCols; col++) {
 					GridCell cell = new GridCell(row, col);
 					char c = line.charAt(col);
+					int i = getPaddedIndex(row, col);
 					if (c == '1') {
-						mapRow.add(CellType.OBSTACLE);
+						grid[i] = OBSTACLE_CODE;
 					} else if (col == numCols - 1) {
-						mapRow.add(CellType.GOAL);
+						grid[i] = GOAL_CODE;
 					} else {
-						mapRow.add(CellType.EMPTY);
+						grid[i] = EMPTY_CODE;
 					}
 					
 					if (c >= 'K' && c <= 'Z') {
@@ -111,7 +160,6 @@ public class Track {
 						distractorStarts.put(Character.toString(c), cell);
 					}
 				}
-				map.add(mapRow);
 			}
 			
 			// Load opponent policies and create opponents
@@ -119,25 +167,22 @@ public class Track {
 			for (int i = 0; i < numOpponents; i++) {
 				String opponentId = input.readLine().trim();
 				lineNo++;
-				RandomPolicy policy = new RandomPolicy();
-				for (int row = 0; row < numRows; row++) {
-					for (int col = 0; col < numCols; col++) {
-						line = input.readLine();
-						lineNo++;
-						GridCell cell = new GridCell(row, col);
-						s = new Scanner(line);
-						s.useLocale(Locale.ENGLISH);
-						EnumMap<Action, Double> actionMap = 
-								new EnumMap<Action, Double>(Action.class);
-						actionMap.put(Action.FS, s.nextDouble());
-						actionMap.put(Action.FM, s.nextDouble());
-						actionMap.put(Action.FF, s.nextDouble());
-						actionMap.put(Action.NE, s.nextDouble());
-						actionMap.put(Action.SE, s.nextDouble());
-						actionMap.put(Action.ST, s.nextDouble());
-						policy.put(cell, actionMap);
+				
+				// One line per cell, probabilities in RandomPolicy.ACTIONS order
+				int numActions = RandomPolicy.ACTIONS.length;
+				double[] probabilities = new double[numRows * numCols
+						* numActions];
+				for (int cell = 0; cell < numRows * numCols; cell++) {
+					line = input.readLine();
+					lineNo++;
+					s = new Scanner(line);
+					s.useLocale(Locale.ENGLISH);
+					for (int a = 0; a < numActions; a++) {
+						probabilities[cell * numActions + a] = s.nextDouble();
 					}
 				}
+				RandomPolicy policy = new RandomPolicy(numRows, numCols,
+						probabilities);
 				opponents.add(new Opponent(opponentId, policy,
 						opponentStarts.get(opponentId)));
 			}
@@ -185,18 +230,126 @@ public class Track {
 		return true;
 	}
 	
+	/**
+	 * Fills the padded grid with border cells
+	 */
+	private void initGrid() {
+		paddedCols = numCols + 2 * PAD;
+		grid = new byte[(numRows + 2 * PAD) * paddedCols];
+		Arrays.fill(grid, BORDER_CODE);
+		cells = new GridCell[grid.length];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new GridCell(i / paddedCols - PAD, i % paddedCols - PAD);
+		}
+	}
+	
+	private static byte toCode(CellType type) {
+		switch (type) {
+		case OBSTACLE:
+			return OBSTACLE_CODE;
+		case GOAL:
+			return GOAL_CODE;
+		default:
+			return EMPTY_CODE;
+		}
+	}
+	
+	/**
+	 * Returns the type of a cell. Cells outside the map are obstacles.
+	 * @param pos
+	 * @return CellType at pos
+	 */
 	public CellType getCellType(GridCell pos) {
-		CellType cell = null;
-		try {
-			cell = map.get(pos.getRow()).get(pos.getCol());
-		} catch (IndexOutOfBoundsException e) {
+		return getCellType(pos.getRow(), pos.getCol());
+	}
+	
+	public CellType getCellType(int row, int col) {
+		return CODE_TYPES[getCellCode(row, col)];
+	}
+	
+	/**
+	 * Returns the code of a cell, BORDER_CODE if it is outside the map
+	 * @param row
+	 * @param col
+	 * @return cell code
+	 */
+	public byte getCellCode(int row, int col) {
+		if (row < -PAD || row >= numRows + PAD || col < -PAD
+				|| col >= numCols + PAD) {
+			return BORDER_CODE;
 		}
-		
-		if (cell != null) {
-			return cell;
-		} else {
-			return CellType.OBSTACLE;
+		return grid[getPaddedIndex(row, col)];
+	}
+	
+	/**
+	 * Returns the index of a cell in the padded grid. Valid for rows and
+	 * columns up to PAD cells outside the map, so code that moves at most
+	 * PAD cells from a map cell can read the grid with no bounds checks.
+	 * Moving one column is +-1 and moving one row is +-getPaddedCols().
+	 * @param row
+	 * @param col
+	 * @return padded index
+	 */
+	public int getPaddedIndex(int row, int col) {
+		return (row + PAD) * paddedCols + col + PAD;
+	}
+	
+	/**
+	 * Returns the code of a cell by padded index
+	 * @param paddedIndex
+	 * @return cell code
+	 */
+	public byte getCellCode(int paddedIndex) {
+		return grid[paddedIndex];
+	}
+	
+	public int getPaddedCols() {
+		return paddedCols;
+	}
+	
+	/**
+	 * Returns the shared GridCell for a position. Every cell of the map and
+	 * of its PAD-wide border is interned, so this does not allocate for any
+	 * cell a move can reach. GridCells further out are created as needed.
+	 * @param row
+	 * @param col
+	 * @return GridCell at (row, col)
+	 */
+	public GridCell getCell(int row, int col) {
+		if (row < -PAD || row >= numRows + PAD || col < -PAD
+				|| col >= numCols + PAD) {
+			return new GridCell(row, col);
 		}
+		return cells[getPaddedIndex(row, col)];
+	}
+	
+	/**
+	 * Returns the shared GridCell for a packed cell index
+	 * @param index row * numCols + col, within the map
+	 * @return GridCell at index
+	 */
+	public GridCell getCell(int index) {
+		return cells[getPaddedIndex(index / numCols, index % numCols)];
+	}
+	
+	/**
+	 * Returns the packed cell index of a map cell
+	 * @param g
+	 * @return row * numCols + col
+	 */
+	public int getCellIndex(GridCell g) {
+		return GridCell.toIndex(g.getRow(), g.getCol(), numCols);
+	}
+	
+	/**
+	 * Same as g.shifted(dir), but returns the shared GridCell
+	 * @param g
+	 * @param dir
+	 * @return neighbouring GridCell
+	 */
+	public GridCell getNeighbour(GridCell g, Direction dir) {
+		return getCell(g.getRow() + dir.getRowOffset(),
+				g.getCol() + dir.getColOffset());
 	}
 	
 	public int getNumRows() {
@@ -259,15 +412,148 @@ public class Track {
 	}
 	
 	/**
-	 * Returns a read-only map
+	 * Returns the player transition table for a cycle's capabilities. Tables
+	 * are compiled on first use and shared by all cycles with the same speed
+	 * and wildness.
+	 * @param cycle
+	 * @return compiled transition table
+	 */
+	public TransitionTable getTransitionTable(Cycle cycle) {
+		return getTransitionTable(cycle.getSpeed(), cycle.isWild());
+	}
+	
+	/**
+	 * Returns the player transition table for a speed and wildness
+	 * @param speed
+	 * @param wild
+	 * @return compiled transition table
+	 */
+	public synchronized TransitionTable getTransitionTable(Cycle.Speed speed,
+			boolean wild) {
+		int i = speed.ordinal() * 2 + (wild ? 1 : 0);
+		if (transitionTables[i] == null) {
+			transitionTables[i] = new TransitionTable(this, speed, wild);
+		}
+		return transitionTables[i];
+	}
+	
+	/**
+	 * Returns the compiled form of an opponent policy on this track. Tables
+	 * are compiled on first use and shared by all copies of the opponent.
+	 * @param policy
+	 * @return compiled opponent table
+	 */
+	public synchronized OpponentTable getOpponentTable(RandomPolicy policy) {
+		OpponentTable table = opponentTables.get(policy);
+		if (table == null) {
+			table = new OpponentTable(this, policy);
+			opponentTables.put(policy, table);
+		}
+		return table;
+	}
+	
+	/**
+	 * Returns the Zobrist keys for race states on this track
+	 * @return Zobrist keys, generated on first use
+	 */
+	public synchronized ZobristKeys getZobristKeys() {
+		if (zobristKeys == null) {
+			zobristKeys = new ZobristKeys(this);
+		}
+		return zobristKeys;
+	}
+	
+	/**
+	 * Returns the shared analytics index of this track
+	 * @return track index, built on first use
+	 */
+	public synchronized TrackIndex getIndex() {
+		if (index == null) {
+			index = new TrackIndex(this);
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns the set of obstacle cells. Shared, so must not be modified.
+	 * @return obstacle cells
+	 */
+	public synchronized CellSet getObstacleCells() {
+		if (obstacleCells == null) {
+			obstacleCells = new CellSet(this);
+			for (int row = 0; row < numRows; row++) {
+				for (int col = 0; col < numCols; col++) {
+					if (grid[getPaddedIndex(row, col)] == OBSTACLE_CODE) {
+						obstacleCells.add(row * numCols + col);
+					}
+				}
+			}
+		}
+		return obstacleCells;
+	}
+	
+	/**
+	 * Returns the set of cells a distractor can appear in. Shared, so must
+	 * not be modified.
+	 * @return distractor cells
+	 */
+	public synchronized CellSet getDistractorCells() {
+		if (distractorCells == null) {
+			distractorCells = new CellSet(this);
+			for (Distractor d : distractors) {
+				distractorCells.add(d.getPosition());
+			}
+		}
+		return distractorCells;
+	}
+	
+	/**
+	 * Returns a table another package keeps for this track, so that it lives
+	 * and dies with the track. Synchronize on the track to create it once.
+	 * @param type
+	 * @return the table, or null if none was put
+	 */
+	public synchronized <T> T getCache(Class<T> type) {
+		return type.cast(caches.get(type));
+	}
+	
+	/**
+	 * Keeps a table for this track, replacing any of the same type
+	 * @param type
+	 * @param table
+	 */
+	public synchronized <T> void putCache(Class<T> type, T table) {
+		caches.put(type, table);
+	}
+	
+	/**
+	 * Returns a read-only map. Built from the grid on first use.
 	 * @return The track's map
 	 */
-	public List<ArrayList<CellType>> getMap() {
-		return Collections.unmodifiableList(map);
+	public synchronized List<ArrayList<CellType>> getMap() {
+		if (mapView == null) {
+			List<ArrayList<CellType>> map = new ArrayList<ArrayList<CellType>>();
+			for (int row = 0; row < numRows; row++) {
+				ArrayList<CellType> mapRow = new ArrayList<CellType>();
+				for (int col = 0; col < numCols; col++) {
+					mapRow.add(getCellType(row, col));
+				}
+				map.add(mapRow);
+			}
+			mapView = Collections.unmodifiableList(map);
+		}
+		return mapView;
 	}
 	
+	/**
+	 * Hash code. A track does not change once loaded, so the deep hash over
+	 * the map, opponents and distractors is computed only once.
+	 */
 	@Override
 	public int hashCode() {
+		if (hash != 0) {
+			return hash;
+		}
 		final int prime = 31;
 		int result = 1;
 		result = prime * result
@@ -276,7 +562,7 @@ public class Track {
 				+ ((fileName == null) ? 0 : fileName.hashCode());
 		result = prime * result
 				+ ((fileNameNoPath == null) ? 0 : fileNameNoPath.hashCode());
-		result = prime * result + ((map == null) ? 0 : map.hashCode());
+		result = prime * result + Arrays.hashCode(grid);
 		result = prime * result + numCols;
 		result = prime * result + numOpponents;
 		result = prime * result + numRows;
@@ -289,6 +575,7 @@ public class Track {
 		result = prime * result + (int) (temp ^ (temp >>> 32));
 		temp = Double.doubleToLongBits(registrationFee);
 		result = prime * result + (int) (temp ^ (temp >>> 32));
+		hash = result;
 		return result;
 	}
 
@@ -301,6 +588,8 @@ public class Track {
 		if (getClass() != obj.getClass())
 			return false;
 		Track other = (Track) obj;
+		if (hashCode() != other.hashCode())
+			return false;
 		if (distractors == null) {
 			if (other.distractors != null)
 				return false;
@@ -316,10 +605,7 @@ public class Track {
 				return false;
 		} else if (!fileNameNoPath.equals(other.fileNameNoPath))
 			return false;
-		if (map == null) {
-			if (other.map != null)
-				return false;
-		} else if (!map.equals(other.map))
+		if (!Arrays.equals(grid, other.grid))
 			return false;
 		if (numCols != other.numCols)
 			return false;
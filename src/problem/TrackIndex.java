@@ -0,0 +1,358 @@
+package problem;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Analytics about a track that do not depend on the race state, computed
+ * once and shared by the simulators, the search and the tour picker. An
+ * index never changes after construction, so it is safe to share between
+ * threads. The arrays and sets it returns are shared too and must not be
+ * modified.
+ *
+ * Turns to goal and reachability are given per cycle capability (speed and
+ * wildness), indexed the same way as Track.getTransitionTable. They treat
+ * any outcome with non-zero probability as possible, so turns to goal is the
+ * fewest turns in which the goal can be reached with some luck, i.e. a lower
+ * bound on the actual number of turns. Minimum damage to goal is likewise
+ * the least obstacle damage plus expected distractor damage of any such
+ * path to the goal, and is also given per reliability.
+ */
+public class TrackIndex {
+
+	/** Turns to goal of a cell from which the goal cannot be reached */
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	/** Actions a single player can usefully take */
+	private static final Action[] MOVES = {
+		Action.FS, Action.FM, Action.FF, Action.NE, Action.SE };
+
+	private final int numRows;
+	private final int numCols;
+	private final double[][] distractorMatrix;
+	private final CellSet obstacleCells;
+	private final CellSet distractorCells;
+	private final double obstacleDensity;
+	private final int lastTurn;
+	/** Per capability, turns to goal of every cell index */
+	private final int[][] turnsToGoal;
+	/** Per capability and reliability, minimum damage to goal */
+	private final double[][] minDamageToGoal;
+	/** Per capability, cells reachable from some starting position */
+	private final CellSet[] reachable;
+
+	/**
+	 * Builds the index. Use Track.getIndex instead so that it is shared.
+	 * @param track
+	 */
+	TrackIndex(Track track) {
+		numRows = track.getNumRows();
+		numCols = track.getNumCols();
+		int numCells = numRows * numCols;
+
+		distractorMatrix = new double[numRows][numCols];
+		for (Distractor d : track.getDistractors()) {
+			distractorMatrix[d.getPosition().getRow()][d.getPosition().getCol()]
+					= d.getAppearProbability();
+		}
+		obstacleCells = track.getObstacleCells();
+		distractorCells = track.getDistractorCells();
+		obstacleDensity = numCells == 0 ? 0.0 :
+			(double) obstacleCells.size() / numCells;
+		lastTurn = track.getOpponents().isEmpty() ? 2 * numCols
+				: 100 * numCols;
+
+		double[][] distractorCosts = new double[2][numCells];
+		for (int cell = 0; cell < numCells; cell++) {
+			double p = distractorMatrix[cell / numCols][cell % numCols];
+			distractorCosts[0][cell] = p
+					* RaceSimTools.DISTRACTOR_COST_UNRELIABLE;
+			distractorCosts[1][cell] = p
+					* RaceSimTools.DISTRACTOR_COST_RELIABLE;
+		}
+
+		int numCapabilities = Cycle.Speed.values().length * 2;
+		turnsToGoal = new int[numCapabilities][];
+		minDamageToGoal = new double[numCapabilities * 2][];
+		reachable = new CellSet[numCapabilities];
+		for (Cycle.Speed speed : Cycle.Speed.values()) {
+			for (int wild = 0; wild < 2; wild++) {
+				TransitionTable table = track.getTransitionTable(speed,
+						wild == 1);
+				int i = capability(speed, wild == 1);
+				ReverseEdges edges = new ReverseEdges(table);
+				turnsToGoal[i] = computeTurnsToGoal(track, edges);
+				for (int reliable = 0; reliable < 2; reliable++) {
+					minDamageToGoal[i * 2 + reliable] = computeMinDamage(
+							track, edges, distractorCosts[reliable]);
+				}
+				reachable[i] = computeReachable(track, table);
+			}
+		}
+	}
+
+	/**
+	 * Every move outcome with non-zero probability, grouped by the cell it
+	 * leads to: the outcomes into cell c are [start[c], start[c + 1])
+	 */
+	private static class ReverseEdges {
+		int[] start;
+		int[] from;
+		double[] damage;
+
+		ReverseEdges(TransitionTable table) {
+			int numCells = table.getNumCells();
+			start = new int[numCells + 1];
+			for (int cell = 0; cell < numCells; cell++) {
+				for (Action a : MOVES) {
+					for (int j = table.getStart(cell, a);
+							j < table.getEnd(cell, a); j++) {
+						if (table.getProbability(j) > 0) {
+							start[table.getNextCell(j) + 1]++;
+						}
+					}
+				}
+			}
+			for (int cell = 0; cell < numCells; cell++) {
+				start[cell + 1] += start[cell];
+			}
+			int[] fill = start.clone();
+			from = new int[start[numCells]];
+			damage = new double[start[numCells]];
+			for (int cell = 0; cell < numCells; cell++) {
+				for (Action a : MOVES) {
+					for (int j = table.getStart(cell, a);
+							j < table.getEnd(cell, a); j++) {
+						if (table.getProbability(j) > 0) {
+							int k = fill[table.getNextCell(j)]++;
+							from[k] = cell;
+							damage[k] = table.getDamage(j);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isGoal(Track track, int cell) {
+		int numCols = track.getNumCols();
+		return track.getCellType(cell / numCols, cell % numCols)
+				== Track.CellType.GOAL;
+	}
+
+	/**
+	 * Breadth first search backwards from the goal cells
+	 */
+	private static int[] computeTurnsToGoal(Track track, ReverseEdges edges) {
+		int numCells = edges.start.length - 1;
+		int[] turns = new int[numCells];
+		int[] queue = new int[numCells];
+		int head = 0;
+		int tail = 0;
+		for (int cell = 0; cell < numCells; cell++) {
+			if (isGoal(track, cell)) {
+				turns[cell] = 0;
+				queue[tail++] = cell;
+			} else {
+				turns[cell] = UNREACHABLE;
+			}
+		}
+		while (head < tail) {
+			int cell = queue[head++];
+			for (int k = edges.start[cell]; k < edges.start[cell + 1]; k++) {
+				int p = edges.from[k];
+				if (turns[p] == UNREACHABLE) {
+					turns[p] = turns[cell] + 1;
+					queue[tail++] = p;
+				}
+			}
+		}
+		return turns;
+	}
+
+	/**
+	 * Dijkstra's algorithm backwards from the goal cells, where moving into
+	 * a cell costs the move's obstacle damage plus the cell's distractor cost
+	 */
+	private static double[] computeMinDamage(Track track, ReverseEdges edges,
+			double[] distractorCost) {
+		int numCells = edges.start.length - 1;
+		final double[] damage = new double[numCells];
+		Arrays.fill(damage, Double.POSITIVE_INFINITY);
+		PriorityQueue<double[]> queue = new PriorityQueue<double[]>(
+				Math.max(1, numCells), new Comparator<double[]>() {
+					@Override
+					public int compare(double[] a, double[] b) {
+						return Double.compare(a[0], b[0]);
+					}
+				});
+		for (int cell = 0; cell < numCells; cell++) {
+			if (isGoal(track, cell)) {
+				damage[cell] = 0;
+				queue.add(new double[] { 0, cell });
+			}
+		}
+		while (!queue.isEmpty()) {
+			double[] top = queue.poll();
+			int cell = (int) top[1];
+			if (top[0] > damage[cell]) {
+				continue;
+			}
+			for (int k = edges.start[cell]; k < edges.start[cell + 1]; k++) {
+				int p = edges.from[k];
+				double d = top[0] + edges.damage[k] + distractorCost[cell];
+				if (d < damage[p] && !isGoal(track, p)) {
+					damage[p] = d;
+					queue.add(new double[] { d, p });
+				}
+			}
+		}
+		return damage;
+	}
+
+	/**
+	 * Breadth first search forwards from the starting positions
+	 */
+	private static CellSet computeReachable(Track track,
+			TransitionTable table) {
+		int numCells = table.getNumCells();
+		CellSet seen = new CellSet(track);
+		int[] queue = new int[numCells];
+		int head = 0;
+		int tail = 0;
+		for (GridCell g : track.getStartingPositions().values()) {
+			int cell = track.getCellIndex(g);
+			if (!seen.contains(cell)) {
+				seen.add(cell);
+				queue[tail++] = cell;
+			}
+		}
+		while (head < tail) {
+			int cell = queue[head++];
+			for (Action a : MOVES) {
+				for (int j = table.getStart(cell, a); j < table.getEnd(cell, a);
+						j++) {
+					int next = table.getNextCell(j);
+					if (table.getProbability(j) > 0 && !seen.contains(next)) {
+						seen.add(next);
+						queue[tail++] = next;
+					}
+				}
+			}
+		}
+		return seen;
+	}
+
+	private boolean withinBounds(GridCell g) {
+		return g.getRow() >= 0 && g.getRow() < numRows && g.getCol() >= 0
+				&& g.getCol() < numCols;
+	}
+
+	private static int capability(Cycle.Speed speed, boolean wild) {
+		return speed.ordinal() * 2 + (wild ? 1 : 0);
+	}
+
+	/**
+	 * Returns the appear probability of the distractor in each cell, 0 where
+	 * there is none, indexed [row][col]
+	 * @return distractor matrix
+	 */
+	public double[][] getDistractorMatrix() {
+		return distractorMatrix;
+	}
+
+	public CellSet getObstacleCells() {
+		return obstacleCells;
+	}
+
+	public CellSet getDistractorCells() {
+		return distractorCells;
+	}
+
+	/**
+	 * Returns the fraction of cells that are obstacles
+	 * @return obstacle density in [0, 1]
+	 */
+	public double getObstacleDensity() {
+		return obstacleDensity;
+	}
+
+	/**
+	 * Returns the last turn on which a race on this track can still be
+	 * running, as in RaceSimTools.getStatus
+	 * @return turn limit
+	 */
+	public int getLastTurn() {
+		return lastTurn;
+	}
+
+	/**
+	 * Returns the fewest turns in which a cycle could reach the goal from a
+	 * cell
+	 * @param cycle
+	 * @param g
+	 * @return turns, or UNREACHABLE, also for cells off the track
+	 */
+	public int getTurnsToGoal(Cycle cycle, GridCell g) {
+		if (!withinBounds(g)) {
+			return UNREACHABLE;
+		}
+		return getTurnsToGoal(cycle)[g.getRow() * numCols + g.getCol()];
+	}
+
+	/**
+	 * Returns the turns to goal of every cell index for a cycle
+	 * @param cycle
+	 * @return turns to goal, UNREACHABLE where the goal cannot be reached
+	 */
+	public int[] getTurnsToGoal(Cycle cycle) {
+		return turnsToGoal[capability(cycle.getSpeed(), cycle.isWild())];
+	}
+
+	/**
+	 * Returns the least damage with which a cycle could reach the goal from
+	 * a cell
+	 * @param cycle
+	 * @param g
+	 * @return damage, or infinity where the goal cannot be reached
+	 */
+	public double getMinDamageToGoal(Cycle cycle, GridCell g) {
+		if (!withinBounds(g)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return getMinDamageToGoal(cycle)[g.getRow() * numCols + g.getCol()];
+	}
+
+	/**
+	 * Returns the minimum damage to goal of every cell index for a cycle
+	 * @param cycle
+	 * @return minimum damage, infinity where the goal cannot be reached
+	 */
+	public double[] getMinDamageToGoal(Cycle cycle) {
+		return minDamageToGoal[capability(cycle.getSpeed(), cycle.isWild()) * 2
+				+ (cycle.isReliable() ? 1 : 0)];
+	}
+
+	/**
+	 * Returns whether a cycle on a given turn could still reach the goal
+	 * before the turn limit
+	 * @param cycle
+	 * @param g
+	 * @param turnNo
+	 * @return false if the state is a dead end
+	 */
+	public boolean canFinish(Cycle cycle, GridCell g, int turnNo) {
+		int turns = getTurnsToGoal(cycle, g);
+		return turns != UNREACHABLE && turnNo + turns <= lastTurn + 1;
+	}
+
+	/**
+	 * Returns the cells a cycle could reach from some starting position
+	 * @param cycle
+	 * @return reachable cells
+	 */
+	public CellSet getReachableCells(Cycle cycle) {
+		return reachable[capability(cycle.getSpeed(), cycle.isWild())];
+	}
+}
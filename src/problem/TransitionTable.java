@@ -0,0 +1,261 @@
+package problem;
+
+import java.util.Arrays;
+
+/**
+ * Player transition function compiled for one track and one cycle capability
+ * (speed and wildness). For every (cell, action) pair the possible outcomes
+ * are stored as flat primitive arrays of next cell, probability, base damage
+ * and obstacle mode. Base damage is obstacle damage only; distractor damage
+ * depends on the distractors of the next turn and is added by the caller via
+ * RaceSimTools.getDistractorDamage.
+ *
+ * Cells are indexed as row * numCols + col. Outcomes for (cell, action) are
+ * the indices [getStart(cell, action), getEnd(cell, action)).
+ */
+public class TransitionTable {
+
+	/** Obstacle mode of an outcome: cleared, set, or kept as it was */
+	public static final byte OBSTACLE_OFF = 0;
+	public static final byte OBSTACLE_ON = 1;
+	public static final byte OBSTACLE_KEEP = 2;
+
+	private static final int NUM_ACTIONS = Action.values().length;
+
+	private Cycle.Speed speed;
+	private boolean wild;
+	private int numRows;
+	private int numCols;
+
+	/** Offsets into the outcome arrays, one per (cell, action) plus one */
+	private int[] start;
+	private int[] nextCell;
+	private double[] probability;
+	private double[] damage;
+	private byte[] obstacleMode;
+	/** Alias sampler per (cell, action) */
+	private AliasTable aliases;
+
+	/**
+	 * Compiles the transition table. Use Track.getTransitionTable instead so
+	 * that tables are shared.
+	 * @param track
+	 * @param speed
+	 * @param wild
+	 */
+	TransitionTable(Track track, Cycle.Speed speed, boolean wild) {
+		this.speed = speed;
+		this.wild = wild;
+		numRows = track.getNumRows();
+		numCols = track.getNumCols();
+		int numCells = numRows * numCols;
+		double obstacleDamage = wild ? RaceSimTools.OBSTACLE_COST_WILD :
+			RaceSimTools.OBSTACLE_COST_DOMESTICATED;
+		boolean[] obstacles = new boolean[numCells];
+		for (int cell = 0; cell < numCells; cell++) {
+			obstacles[cell] = track.getCellType(cell / numCols,
+					cell % numCols) == Track.CellType.OBSTACLE;
+		}
+
+		// At most 4 outcomes per (cell, action)
+		start = new int[numCells * NUM_ACTIONS + 1];
+		nextCell = new int[numCells * NUM_ACTIONS * 4];
+		probability = new double[nextCell.length];
+		damage = new double[nextCell.length];
+		obstacleMode = new byte[nextCell.length];
+		int n = 0;
+		for (int cell = 0; cell < numCells; cell++) {
+			int row = cell / numCols;
+			int col = cell % numCols;
+			for (Action action : Action.values()) {
+				int first = n;
+				start[cell * NUM_ACTIONS + action.ordinal()] = first;
+				Action a = normalise(action, false, true);
+				if (a == Action.TO) {
+
+					// Turn into obstacle action. Slight chance of failure
+					n = add(first, n, cell,
+							RaceSimTools.TO_SUCCESS_PROBABILITY, 0.0, OBSTACLE_ON);
+					n = add(first, n, cell,
+							1 - RaceSimTools.TO_SUCCESS_PROBABILITY, 0.0,
+							OBSTACLE_OFF);
+				} else if (a == Action.TC) {
+					n = add(first, n, cell, 1.0, 0.0, OBSTACLE_OFF);
+				} else if (a == Action.ST) {
+					n = add(first, n, cell, 1.0, 0.0, OBSTACLE_KEEP);
+				} else if (a == Action.NE || a == Action.SE) {
+
+					// Error exists for NE and SE moves. 4 possible results.
+					int vertical = a == Action.NE ? -1 : 1;
+					int[] rows = { row + vertical, row, row, row + vertical };
+					int[] cols = { col, col + 1, col, col + 1 };
+					double[] probs = { 0.1, 0.1, 0.1, 0.7 };
+					for (int i = 0; i < 4; i++) {
+						int r = rows[i];
+						int c = cols[i];
+						double d = 0.0;
+						if (r < 0 || r >= numRows || c < 0 || c >= numCols) {
+							r = row;
+							c = col;
+						} else if (obstacles[r * numCols + c]) {
+							d = obstacleDamage;
+							if (!wild) {
+								r = row;
+								c = col;
+							}
+						}
+						n = add(first, n, r * numCols + c, probs[i], d,
+								OBSTACLE_OFF);
+					}
+				} else {
+
+					// FS, FM, FF
+					int maxMoves = a == Action.FS ? 1 : a == Action.FM ? 2 : 3;
+					double d = 0.0;
+					int c = col;
+					for (int i = 0; i < maxMoves; i++) {
+						if (c + 1 >= numCols) {
+							break;
+						}
+						if (obstacles[row * numCols + c + 1]) {
+							d += obstacleDamage;
+							if (!wild) {
+								break;
+							}
+						}
+						c++;
+					}
+					n = add(first, n, row * numCols + c, 1.0, d, OBSTACLE_OFF);
+				}
+			}
+		}
+		start[numCells * NUM_ACTIONS] = n;
+		nextCell = Arrays.copyOf(nextCell, n);
+		probability = Arrays.copyOf(probability, n);
+		damage = Arrays.copyOf(damage, n);
+		obstacleMode = Arrays.copyOf(obstacleMode, n);
+		aliases = new AliasTable(probability, start);
+	}
+
+	/**
+	 * Appends an outcome to the (cell, action) pair starting at first, merging
+	 * it with an identical outcome if there is one
+	 * @return the new number of outcomes
+	 */
+	private int add(int first, int n, int cell, double p, double d,
+			byte mode) {
+		for (int i = first; i < n; i++) {
+			if (nextCell[i] == cell && damage[i] == d
+					&& obstacleMode[i] == mode) {
+				probability[i] += p;
+				return n;
+			}
+		}
+		nextCell[n] = cell;
+		probability[n] = p;
+		damage[n] = d;
+		obstacleMode[n] = mode;
+		return n + 1;
+	}
+
+	/**
+	 * Returns the action that is actually carried out, exactly as
+	 * RaceSimTools.nextPlayers adjusts it for the cycle and player state
+	 * @param action The requested action
+	 * @param isObstacle Whether the player is in obstacle mode
+	 * @param adv1Plus If true, TO action is allowed
+	 * @return the effective action
+	 */
+	public Action normalise(Action action, boolean isObstacle,
+			boolean adv1Plus) {
+		if (action == Action.FM && speed == Cycle.Speed.SLOW) {
+			return Action.FS;
+		} else if (action == Action.FF && speed == Cycle.Speed.MEDIUM) {
+			return Action.FM;
+		} else if (action == Action.FF && speed == Cycle.Speed.SLOW) {
+			return Action.FS;
+		} else if (isObstacle && action != Action.TC) {
+			return Action.ST;
+		} else if (action == Action.TO && !adv1Plus) {
+			return Action.ST;
+		}
+		return action;
+	}
+
+	/**
+	 * Returns the first outcome index for a cell and an effective action
+	 * (see normalise)
+	 * @param cell Cell index
+	 * @param action
+	 * @return first outcome index
+	 */
+	public int getStart(int cell, Action action) {
+		return start[cell * NUM_ACTIONS + action.ordinal()];
+	}
+
+	/**
+	 * Returns one past the last outcome index for a cell and an effective
+	 * action (see normalise)
+	 * @param cell Cell index
+	 * @param action
+	 * @return end outcome index, exclusive
+	 */
+	public int getEnd(int cell, Action action) {
+		return start[cell * NUM_ACTIONS + action.ordinal() + 1];
+	}
+
+	/**
+	 * Samples an outcome for a cell and an effective action in O(1)
+	 * @param cell Cell index
+	 * @param action Effective action (see normalise)
+	 * @param u Uniform random number in [0, 1)
+	 * @return outcome index
+	 */
+	public int sample(int cell, Action action, double u) {
+		return aliases.sample(cell * NUM_ACTIONS + action.ordinal(), u);
+	}
+
+	public int getNextCell(int outcome) {
+		return nextCell[outcome];
+	}
+
+	public double getProbability(int outcome) {
+		return probability[outcome];
+	}
+
+	/**
+	 * Returns the obstacle damage of an outcome, excluding distractors
+	 * @param outcome
+	 * @return base damage cost
+	 */
+	public double getDamage(int outcome) {
+		return damage[outcome];
+	}
+
+	/**
+	 * Returns the obstacle mode after an outcome
+	 * @param outcome
+	 * @param isObstacle The obstacle mode before the transition
+	 * @return true if the player is in obstacle mode afterwards
+	 */
+	public boolean getNextObstacle(int outcome, boolean isObstacle) {
+		byte mode = obstacleMode[outcome];
+		return mode == OBSTACLE_ON || (mode == OBSTACLE_KEEP && isObstacle);
+	}
+
+	public Cycle.Speed getSpeed() {
+		return speed;
+	}
+
+	public boolean isWild() {
+		return wild;
+	}
+
+	public int getNumCols() {
+		return numCols;
+	}
+
+	public int getNumCells() {
+		return numRows * numCols;
+	}
+}
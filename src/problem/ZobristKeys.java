@@ -0,0 +1,160 @@
+package problem;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Zobrist keys for the race states of one track. A state's 64-bit key is the
+ * XOR of one random key per (player, cell), (player, obstacle mode),
+ * (opponent, cell) and (distractor, appeared). Keys are generated from a fixed
+ * seed, so the key of a state is stable across runs.
+ *
+ * Successor keys are derived incrementally by XORing out the factors that
+ * changed and XORing in their new values. Damage, status and turn number are
+ * not part of the key.
+ */
+public class ZobristKeys {
+
+	private static final long SEED = 0x5DEECE66DL;
+
+	private int numCols;
+	private long[][] playerCells;
+	private long[] playerObstacles;
+	private long[][] opponentCells;
+	private long[] distractorsAppeared;
+
+	/**
+	 * Generates keys for a track. Use Track.getZobristKeys instead so that
+	 * keys are shared. There are player keys for as many players as the
+	 * track has starting positions.
+	 * @param track
+	 */
+	ZobristKeys(Track track) {
+		Random random = new Random(SEED);
+		numCols = track.getNumCols();
+		int numCells = track.getNumRows() * numCols;
+		int numPlayers = track.getStartingPositions().size();
+		playerCells = new long[numPlayers][numCells];
+		playerObstacles = new long[numPlayers];
+		for (int i = 0; i < numPlayers; i++) {
+			for (int cell = 0; cell < numCells; cell++) {
+				playerCells[i][cell] = random.nextLong();
+			}
+			playerObstacles[i] = random.nextLong();
+		}
+		opponentCells = new long[track.getOpponents().size()][numCells];
+		for (int i = 0; i < opponentCells.length; i++) {
+			for (int cell = 0; cell < numCells; cell++) {
+				opponentCells[i][cell] = random.nextLong();
+			}
+		}
+		distractorsAppeared = new long[track.getDistractors().size()];
+		for (int i = 0; i < distractorsAppeared.length; i++) {
+			distractorsAppeared[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Computes the key of a state from scratch
+	 * @param state
+	 * @return Zobrist key
+	 */
+	public long hash(RaceState state) {
+		long key = 0;
+		List<Player> players = state.getPlayers();
+		for (int i = 0; i < players.size(); i++) {
+			key ^= player(i, players.get(i));
+		}
+		List<Opponent> opponents = state.getOpponents();
+		for (int i = 0; i < opponents.size(); i++) {
+			key ^= opponent(i, cellIndex(opponents.get(i).getPosition()));
+		}
+		List<Distractor> distractors = state.getDistractors();
+		for (int i = 0; i < distractors.size(); i++) {
+			key ^= distractor(i, distractors.get(i).hasAppeared());
+		}
+		return key;
+	}
+
+	/**
+	 * Derives the key of a successor from the key of its parent, touching
+	 * only the actors that changed
+	 * @param key Key of the parent state
+	 * @param parent
+	 * @param players Players of the successor
+	 * @param opponents Opponents of the successor
+	 * @param distractors Distractors of the successor
+	 * @return Zobrist key of the successor
+	 */
+	public long update(long key, RaceState parent, List<Player> players,
+			List<Opponent> opponents, List<Distractor> distractors) {
+		List<Player> oldPlayers = parent.getPlayers();
+		for (int i = 0; i < players.size(); i++) {
+			Player from = oldPlayers.get(i);
+			Player to = players.get(i);
+			if (!from.getPosition().equals(to.getPosition())
+					|| from.isObstacle() != to.isObstacle()) {
+				key ^= player(i, from) ^ player(i, to);
+			}
+		}
+		List<Opponent> oldOpponents = parent.getOpponents();
+		for (int i = 0; i < opponents.size(); i++) {
+			GridCell from = oldOpponents.get(i).getPosition();
+			GridCell to = opponents.get(i).getPosition();
+			if (!from.equals(to)) {
+				key ^= opponent(i, cellIndex(from)) ^ opponent(i, cellIndex(to));
+			}
+		}
+		List<Distractor> oldDistractors = parent.getDistractors();
+		for (int i = 0; i < distractors.size(); i++) {
+			if (oldDistractors.get(i).hasAppeared()
+					!= distractors.get(i).hasAppeared()) {
+				key ^= distractorsAppeared[i];
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the key of a player
+	 * @param i Player index within the state
+	 * @param cell Cell index
+	 * @param isObstacle
+	 * @return key
+	 */
+	public long player(int i, int cell, boolean isObstacle) {
+		long key = playerCells[i][cell];
+		if (isObstacle) {
+			key ^= playerObstacles[i];
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the key of an opponent
+	 * @param i Opponent index within the state
+	 * @param cell Cell index
+	 * @return key
+	 */
+	public long opponent(int i, int cell) {
+		return opponentCells[i][cell];
+	}
+
+	/**
+	 * Returns the key of a distractor, which is 0 when it has not appeared
+	 * @param i Distractor index within the state
+	 * @param hasAppeared
+	 * @return key
+	 */
+	public long distractor(int i, boolean hasAppeared) {
+		return hasAppeared ? distractorsAppeared[i] : 0;
+	}
+
+	private long player(int i, Player p) {
+		return player(i, cellIndex(p.getPosition()), p.isObstacle());
+	}
+
+	private int cellIndex(GridCell g) {
+		return g.getRow() * numCols + g.getCol();
+	}
+}
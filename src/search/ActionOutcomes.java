@@ -0,0 +1,123 @@
+package search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import problem.Action;
+import problem.Cycle;
+import problem.GridCell;
+import problem.RaceSimTools;
+import problem.Track;
+import problem.TrackIndex;
+import problem.TransitionTable;
+
+// Where an action can take the cycle from one cell, taken from the cycle's
+// compiled transitions. Outcomes into the same cell are merged, so each
+// distinct cell appears once with its probability and the expected damage
+// of moving into it. Never changes once built, so it can be read by any
+// number of threads.
+class ActionOutcomes {
+	private Action effective; // The action the table carries out.
+	private int cellIndex; // Index of the cell moved from.
+	private GridCell[] cells; // Distinct outcome cells.
+	private double[] probability; // Probability of each cell.
+	private double[] cost; // Expected damage moving into each cell.
+	private double heuristic; // Expected damage to the goal, negated.
+
+	ActionOutcomes(GridCell cell, Action action, Track track, Cycle cycle,
+			TransitionTable table, TrackIndex index,
+			double[][] distractorMatrix) {
+		effective = table.normalise(action, false, false);
+		cellIndex = track.getCellIndex(cell);
+
+		List<GridCell> outcomes = new ArrayList<GridCell>();
+		List<Double> p = new ArrayList<Double>();
+		List<Double> c = new ArrayList<Double>();
+		double distractorDamage = RaceSimTools.getDistractorDamage(cycle);
+		for (int j = table.getStart(cellIndex, effective);
+				j < table.getEnd(cellIndex, effective); j++) {
+			double q = table.getProbability(j);
+			if (q <= 0) {
+				continue;
+			}
+			GridCell g = track.getCell(table.getNextCell(j));
+			double d = table.getDamage(j) + distractorMatrix[g.getRow()][g
+					.getCol()] * distractorDamage;
+
+			// Outcomes into the same cell are merged
+			int i = outcomes.indexOf(g);
+			if (i >= 0) {
+				double r = p.get(i);
+				c.set(i, (c.get(i) * r + d * q) / (r + q));
+				p.set(i, r + q);
+			} else {
+				outcomes.add(g);
+				p.add(q);
+				c.add(d);
+			}
+		}
+		cells = outcomes.toArray(new GridCell[outcomes.size()]);
+		probability = new double[cells.length];
+		cost = new double[cells.length];
+		heuristic = 0;
+		for (int i = 0; i < cells.length; i++) {
+			probability[i] = p.get(i);
+			cost[i] = c.get(i);
+			double damage = index.getMinDamageToGoal(cycle, cells[i]);
+			if (Double.isInfinite(damage)) {
+				damage = track.getPrize();
+			}
+			heuristic -= probability[i] * (cost[i] + damage);
+		}
+	}
+
+	// Whether any outcome can still reach the goal in time.
+	boolean canFinish(TrackIndex index, Cycle cycle, int turnNo) {
+		for (GridCell g : cells) {
+			if (index.canFinish(cycle, g, turnNo)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Position of a cell among the outcomes, or -1.
+	int indexOf(GridCell g) {
+		for (int i = 0; i < cells.length; i++) {
+			if (cells[i].equals(g)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Sample the position of the outcome cell, given a uniform number u.
+	int sample(TransitionTable table, Track track, double u) {
+		return indexOf(track.getCell(table.getNextCell(table.sample(
+				cellIndex, effective, u))));
+	}
+
+	int size() {
+		return cells.length;
+	}
+
+	GridCell getCell(int i) {
+		return cells[i];
+	}
+
+	double getProbability(int i) {
+		return probability[i];
+	}
+
+	double getCost(int i) {
+		return cost[i];
+	}
+
+	double getHeuristic() {
+		return heuristic;
+	}
+
+	Action getEffectiveAction() {
+		return effective;
+	}
+}
@@ -0,0 +1,122 @@
+package search;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import problem.Action;
+import problem.GridCell;
+
+// The chance node under a SearchNode for one action. Outcomes are sampled
+// from the cycle's compiled transitions, so NE and SE land on the diagonal,
+// the side or the same cell as often as they really do. Each outcome cell
+// gets its own SearchNode with its own statistics. With progressive
+// widening only about sqrt(visits) outcomes are opened, the likely ones
+// first, and later samples of unopened outcomes fall back on opened ones.
+public class ChanceNode {
+	// Outcomes allowed open: WIDENING * visits ^ WIDENING_EXPONENT.
+	static final double WIDENING = 1.0;
+	static final double WIDENING_EXPONENT = 0.5;
+
+	private SearchNode parent; // The decision node this action is taken in.
+	private Action action; // The action as requested.
+	private ActionOutcomes outcomes; // Distinct outcome cells.
+	private int visits; // Number of times this action is tried.
+	private double totReward; // Total reward, including step costs.
+
+	private Map<GridCell, SearchNode> children; // Opened outcomes.
+	private double openProbability; // Probability of the opened outcomes.
+
+	public ChanceNode(SearchNode parent, Action action) {
+		this.parent = parent;
+		this.action = action;
+		outcomes = new ActionOutcomes(parent.getCell(), action,
+				parent.getTrack(), parent.getCycle(),
+				parent.getTransitionTable(), parent.getIndex(),
+				parent.getDistractorMatrix());
+		visits = 1;
+		totReward = 0;
+		children = new HashMap<GridCell, SearchNode>();
+	}
+
+	// Whether any outcome can still reach the goal in time.
+	public boolean canFinish() {
+		return outcomes.canFinish(parent.getIndex(), parent.getCycle(),
+				parent.getTurnNo() + 1);
+	}
+
+	// Sample the outcome to search next, opening it if widening allows.
+	public SearchNode sample() {
+		GridCell g = outcomes.getCell(outcomes.sample(
+				parent.getTransitionTable(), parent.getTrack(), parent
+						.getRandom().nextDouble()));
+		SearchNode child = children.get(g);
+		if (child != null) {
+			return child;
+		}
+		double allowed = WIDENING * Math.pow(visits, WIDENING_EXPONENT);
+		if (children.isEmpty() || children.size() < allowed) {
+			child = new SearchNode(parent, g);
+			children.put(g, child);
+			openProbability += getProbability(g);
+			return child;
+		}
+
+		// Pick an opened outcome in proportion to its probability
+		double u = parent.getRandom().nextDouble() * openProbability;
+		for (Map.Entry<GridCell, SearchNode> e : children.entrySet()) {
+			u -= getProbability(e.getKey());
+			if (u <= 0) {
+				return e.getValue();
+			}
+		}
+		return children.values().iterator().next();
+	}
+
+	private double getProbability(GridCell g) {
+		return outcomes.getProbability(outcomes.indexOf(g));
+	}
+
+	// Expected damage of moving into an outcome cell.
+	public double getCost(GridCell g) {
+		int i = outcomes.indexOf(g);
+		return i < 0 ? 0 : outcomes.getCost(i);
+	}
+
+	public void updateStats(double value) {
+		visits++;
+		totReward += value;
+	}
+
+	public double getTotalReward() {
+		return totReward;
+	}
+
+	public double getValue() {
+		return totReward / visits;
+	}
+
+	public int getVisits() {
+		return visits;
+	}
+
+	public double getHeuristic() {
+		return outcomes.getHeuristic();
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public Action getEffectiveAction() {
+		return outcomes.getEffectiveAction();
+	}
+
+	// The opened child for an outcome cell, or null.
+	public SearchNode getChild(GridCell g) {
+		return children.get(g);
+	}
+
+	public Map<GridCell, SearchNode> getChildren() {
+		return children;
+	}
+}
@@ -0,0 +1,118 @@
+package search;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import problem.Action;
+import problem.GridCell;
+
+// ChanceNode for a tree searched by several threads at once. Outcomes are
+// the same, and widened the same way, but each outcome's child is
+// published with a compare-and-set, so two threads opening it together
+// end up sharing whichever node got there first.
+public class ConcurrentChanceNode extends ConcurrentStats {
+	private ConcurrentSearchNode parent; // Decision node above.
+	private Action action; // The action as requested.
+	private ActionOutcomes outcomes; // Distinct outcome cells.
+	private AtomicReferenceArray<ConcurrentSearchNode> children; // Opened.
+	private AtomicInteger opened; // Number of opened outcomes.
+
+	ConcurrentChanceNode(ConcurrentSearchNode parent, Action action) {
+		this.parent = parent;
+		this.action = action;
+		outcomes = new ActionOutcomes(parent.getCell(), action,
+				parent.getTrack(), parent.getCycle(),
+				parent.getTransitionTable(), parent.getIndex(),
+				parent.getDistractorMatrix());
+		children = new AtomicReferenceArray<ConcurrentSearchNode>(
+				outcomes.size());
+		opened = new AtomicInteger();
+	}
+
+	// Whether any outcome can still reach the goal in time.
+	boolean canFinish() {
+		return outcomes.canFinish(parent.getIndex(), parent.getCycle(),
+				parent.getTurnNo() + 1);
+	}
+
+	// Sample the outcome to search next, opening it if widening allows.
+	ConcurrentSearchNode sample(Random rng) {
+		int i = outcomes.sample(parent.getTransitionTable(),
+				parent.getTrack(), rng.nextDouble());
+		ConcurrentSearchNode child = children.get(i);
+		if (child != null) {
+			return child;
+		}
+		double allowed = ChanceNode.WIDENING
+				* Math.pow(getVisits(), ChanceNode.WIDENING_EXPONENT);
+		int n = opened.get();
+		while (n == 0 || n < allowed) {
+			if (opened.compareAndSet(n, n + 1)) {
+				child = new ConcurrentSearchNode(parent, outcomes.getCell(i));
+				if (children.compareAndSet(i, null, child)) {
+					return child;
+				}
+				// Another thread opened it first
+				opened.decrementAndGet();
+				return children.get(i);
+			}
+			n = opened.get();
+		}
+
+		// Pick an opened outcome in proportion to its probability. Outcomes
+		// still being opened by other threads may not show up yet.
+		double open = 0;
+		for (int j = 0; j < outcomes.size(); j++) {
+			if (children.get(j) != null) {
+				open += outcomes.getProbability(j);
+			}
+		}
+		double u = rng.nextDouble() * open;
+		ConcurrentSearchNode last = null;
+		for (int j = 0; j < outcomes.size(); j++) {
+			ConcurrentSearchNode c = children.get(j);
+			if (c != null) {
+				last = c;
+				u -= outcomes.getProbability(j);
+				if (u <= 0) {
+					return c;
+				}
+			}
+		}
+		if (last == null) {
+			// Opened but not yet published; open this outcome too
+			child = new ConcurrentSearchNode(parent, outcomes.getCell(i));
+			if (children.compareAndSet(i, null, child)) {
+				opened.incrementAndGet();
+				return child;
+			}
+			return children.get(i);
+		}
+		return last;
+	}
+
+	// Expected damage of moving into an outcome cell.
+	double getCost(GridCell g) {
+		int i = outcomes.indexOf(g);
+		return i < 0 ? 0 : outcomes.getCost(i);
+	}
+
+	public double getHeuristic() {
+		return outcomes.getHeuristic();
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public Action getEffectiveAction() {
+		return outcomes.getEffectiveAction();
+	}
+
+	// The opened child for an outcome cell, or null.
+	public ConcurrentSearchNode getChild(GridCell g) {
+		int i = outcomes.indexOf(g);
+		return i < 0 ? null : children.get(i);
+	}
+}
@@ -0,0 +1,282 @@
+package search;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import problem.Action;
+import problem.Cycle;
+import problem.GridCell;
+import problem.Track;
+import problem.TrackIndex;
+import problem.TransitionTable;
+
+// SearchNode for one tree searched by several threads at once (tree
+// parallel MCTS). Visits and rewards are atomic counters, and a node's
+// chance nodes are published in one compare-and-set when it is expanded,
+// so no thread ever takes a lock. Each thread passes its own random
+// generator to search(). Threads add a virtual loss to every node on their
+// way down, which steers the others onto different paths until the result
+// is backed up.
+public class ConcurrentSearchNode extends ConcurrentStats {
+	private static final AtomicReferenceFieldUpdater<ConcurrentSearchNode,
+			ConcurrentChanceNode[]> CHILDREN = AtomicReferenceFieldUpdater
+			.newUpdater(ConcurrentSearchNode.class,
+					ConcurrentChanceNode[].class, "children");
+
+	private GridCell cell; // The cell this node represents.
+	private Cycle cycle; // The cycle being used for the search.
+	private Track track; // The track this cell is in.
+	private double[][] distractorMatrix; // The distractorMatrix for this track.
+	private int turnNo; // Race turn this node is reached on.
+	private TrackIndex index; // Turns and damage to goal, for pruning.
+	private TransitionTable table; // Compiled moves of the cycle.
+	private OpponentForecast forecast; // Risk of an opponent winning first.
+	private boolean isGoal; // If this node represents a goal state.
+	private double bias; // The bias to use in UCT calculations.
+	// Chance nodes of the actions, or null until expanded.
+	private volatile ConcurrentChanceNode[] children;
+
+	public ConcurrentSearchNode(GridCell cell, Cycle cycle, Track track,
+			double[][] distractorMatrix, int turnNo) {
+		this(cell, cycle, track, distractorMatrix, turnNo, track.getIndex(),
+				track.getTransitionTable(cycle),
+				OpponentForecast.forTrack(track));
+	}
+
+	// A node one turn below a parent, sharing everything it looked up.
+	ConcurrentSearchNode(ConcurrentSearchNode parent, GridCell cell) {
+		this(cell, parent.cycle, parent.track, parent.distractorMatrix,
+				parent.turnNo + 1, parent.index, parent.table, parent.forecast);
+	}
+
+	private ConcurrentSearchNode(GridCell cell, Cycle cycle, Track track,
+			double[][] distractorMatrix, int turnNo, TrackIndex index,
+			TransitionTable table, OpponentForecast forecast) {
+		this.cell = cell;
+		this.cycle = cycle;
+		this.track = track;
+		this.distractorMatrix = distractorMatrix;
+		this.turnNo = turnNo;
+		this.index = index;
+		this.table = table;
+		this.forecast = forecast;
+		isGoal = track.getCellType(cell) == Track.CellType.GOAL;
+		bias = track.getPrize() * 0.6;
+	}
+
+	public GridCell getCell() {
+		return cell;
+	}
+
+	public Cycle getCycle() {
+		return cycle;
+	}
+
+	public Track getTrack() {
+		return track;
+	}
+
+	public double[][] getDistractorMatrix() {
+		return distractorMatrix;
+	}
+
+	public int getTurnNo() {
+		return turnNo;
+	}
+
+	public TrackIndex getIndex() {
+		return index;
+	}
+
+	public TransitionTable getTransitionTable() {
+		return table;
+	}
+
+	// Build the chance nodes of every move, as in SearchNode, and publish
+	// them unless another thread expanded this node first.
+	private void expand() {
+		if (children != null) {
+			return;
+		}
+		List<ConcurrentChanceNode> list =
+				new ArrayList<ConcurrentChanceNode>();
+		for (Action a : SearchNode.MOVES) {
+			ConcurrentChanceNode c = new ConcurrentChanceNode(this, a);
+			boolean duplicate = false;
+			for (ConcurrentChanceNode other : list) {
+				if (other.getEffectiveAction() == c.getEffectiveAction()) {
+					duplicate = true;
+				}
+			}
+			if (!duplicate && c.canFinish()) {
+				list.add(c);
+			}
+		}
+		CHILDREN.compareAndSet(this, null,
+				list.toArray(new ConcurrentChanceNode[list.size()]));
+	}
+
+	public boolean isLeaf() {
+		ConcurrentChanceNode[] c = children;
+		return isGoal || c == null || c.length == 0;
+	}
+
+	// Search from this node on the given number of threads for the given
+	// time in nanoseconds. Thread i draws from rngs[i], and the first
+	// searches on the calling thread.
+	public void loopSearch(final long time, Random[] rngs) {
+		Thread[] threads = new Thread[rngs.length - 1];
+		for (int i = 0; i < threads.length; i++) {
+			final Random rng = rngs[i + 1];
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					loopSearch(time, rng);
+				}
+			});
+			threads[i].start();
+		}
+		loopSearch(time, rngs[0]);
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public void loopSearch(long time, Random rng) {
+		long end = System.nanoTime() + time;
+
+		while (System.nanoTime() < end) {
+			search(rng);
+		}
+	}
+
+	// One iteration, the same as SearchNode.search() but with a virtual
+	// loss held on the path until the value is backed up.
+	public void search(Random rng) {
+		List<ConcurrentSearchNode> visited =
+				new ArrayList<ConcurrentSearchNode>();
+		List<ConcurrentChanceNode> chances =
+				new ArrayList<ConcurrentChanceNode>();
+		List<Double> costs = new ArrayList<Double>();
+		ConcurrentSearchNode cur = this;
+		addVirtualLoss();
+		visited.add(this);
+		while (!cur.isLeaf()) {
+			ConcurrentChanceNode chance = cur.select(rng);
+			cur = chance.sample(rng);
+			cur.addVirtualLoss();
+			chances.add(chance);
+			costs.add(chance.getCost(cur.cell));
+			visited.add(cur);
+		}
+
+		double value;
+		if (cur.isGoal) {
+			value = track.getPrize()
+					* (1 - forecast.getLossProbability(cur.turnNo - 1));
+		} else if (!index.canFinish(cycle, cur.cell, cur.turnNo)) {
+			// Too far from the goal to finish in time
+			value = -track.getPrize();
+		} else {
+			cur.expand();
+			if (cur.isLeaf()) {
+				// Dead end
+				value = -track.getPrize();
+			} else {
+				ConcurrentChanceNode chance = cur.select(rng);
+				ConcurrentSearchNode newNode = chance.sample(rng);
+				newNode.addVirtualLoss();
+				TrackRollout tr = new TrackRollout(newNode.cell, cycle, track,
+						distractorMatrix, rng, newNode.turnNo, index, forecast);
+				value = tr.rollout();
+				newNode.update(value);
+				value -= chance.getCost(newNode.cell);
+				chance.update(value);
+			}
+		}
+		// Back the value up, charging each step's damage to the nodes above
+		for (int i = visited.size() - 1; i >= 0; i--) {
+			visited.get(i).update(value);
+			if (i > 0) {
+				value -= costs.get(i - 1);
+				chances.get(i - 1).update(value);
+			}
+		}
+	}
+
+	// UCT with progressive bias, as in SearchNode, counting the visits of
+	// threads still below each chance node as losses.
+	private ConcurrentChanceNode select(Random rng) {
+		ConcurrentChanceNode selected = null;
+		double bestValue = -Double.MAX_VALUE;
+		double logVisits = Math.log(getVirtualVisits());
+		double loss = -track.getPrize();
+		for (ConcurrentChanceNode c : children) {
+			int n = c.getVirtualVisits();
+			double uctValue = c.getVirtualValue(loss)
+					+ bias * Math.sqrt(logVisits / n) + rng.nextDouble()
+					+ c.getHeuristic() / n;
+			if (uctValue > bestValue) {
+				selected = c;
+				bestValue = uctValue;
+			}
+		}
+		selected.addVirtualLoss();
+		return selected;
+	}
+
+	// Chance nodes of the expanded actions, empty before expansion.
+	public List<ConcurrentChanceNode> getChanceNodes() {
+		List<ConcurrentChanceNode> list =
+				new ArrayList<ConcurrentChanceNode>();
+		ConcurrentChanceNode[] c = children;
+		if (c != null) {
+			for (ConcurrentChanceNode chance : c) {
+				list.add(chance);
+			}
+		}
+		return list;
+	}
+
+	// Visits of each expanded action.
+	public Map<Action, Integer> getActionVisits() {
+		Map<Action, Integer> visits = new EnumMap<Action, Integer>(
+				Action.class);
+		for (ConcurrentChanceNode c : getChanceNodes()) {
+			visits.put(c.getAction(), c.getVisits());
+		}
+		return visits;
+	}
+
+	public Action bestAction() {
+		Action best = null;
+		double bestUtility = -Double.MAX_VALUE;
+		for (ConcurrentChanceNode c : getChanceNodes()) {
+			if (c.getValue() > bestUtility) {
+				best = c.getAction();
+				bestUtility = c.getValue();
+			}
+		}
+		return best;
+	}
+
+	// Returns the node for the cell the cycle actually moved to after an
+	// action, or null if that outcome was never opened.
+	public ConcurrentSearchNode findChild(Action action, GridCell observed) {
+		for (ConcurrentChanceNode c : getChanceNodes()) {
+			if (c.getAction() == action) {
+				return c.getChild(observed);
+			}
+		}
+		return null;
+	}
+}
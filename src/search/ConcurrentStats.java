@@ -0,0 +1,66 @@
+package search;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+// Visit and reward counters of a node shared by several searching threads,
+// updated with compare-and-set and never locked. A thread passing down
+// through a node adds a virtual loss, which counts as one more visit
+// scoring the loss value until the thread backs up its real result. Other
+// threads selecting meanwhile see the node as worse and try elsewhere.
+abstract class ConcurrentStats {
+	private static final AtomicIntegerFieldUpdater<ConcurrentStats> VISITS =
+			AtomicIntegerFieldUpdater.newUpdater(ConcurrentStats.class,
+					"visits");
+	private static final AtomicIntegerFieldUpdater<ConcurrentStats> VIRTUAL =
+			AtomicIntegerFieldUpdater.newUpdater(ConcurrentStats.class,
+					"virtual");
+	private static final AtomicLongFieldUpdater<ConcurrentStats> REWARD =
+			AtomicLongFieldUpdater.newUpdater(ConcurrentStats.class,
+					"rewardBits");
+
+	private volatile int visits = 1; // Number of times visited.
+	private volatile int virtual; // Threads currently below this node.
+	private volatile long rewardBits; // Total reward, as double bits.
+
+	// A thread starts searching below this node.
+	void addVirtualLoss() {
+		VIRTUAL.incrementAndGet(this);
+	}
+
+	// A thread backs up its result and takes back its virtual loss.
+	void update(double value) {
+		long prev;
+		long next;
+		do {
+			prev = rewardBits;
+			next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev)
+					+ value);
+		} while (!REWARD.compareAndSet(this, prev, next));
+		VISITS.incrementAndGet(this);
+		VIRTUAL.decrementAndGet(this);
+	}
+
+	public int getVisits() {
+		return visits;
+	}
+
+	public double getTotalReward() {
+		return Double.longBitsToDouble(rewardBits);
+	}
+
+	public double getValue() {
+		return getTotalReward() / visits;
+	}
+
+	// Visits including those of threads still searching below.
+	int getVirtualVisits() {
+		return visits + virtual;
+	}
+
+	// Mean value counting every unfinished visit as scoring loss.
+	double getVirtualValue(double loss) {
+		int v = virtual;
+		return (getTotalReward() + v * loss) / (visits + v);
+	}
+}
@@ -0,0 +1,308 @@
+package search;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+import problem.Action;
+import problem.Cycle;
+import problem.GridCell;
+import problem.RaceSimTools;
+import problem.TransitionTable;
+import problem.Track;
+
+/**
+ * Exact solver for races with a single player and no opponents. Such a race
+ * is a finite MDP over (turn, cell, obstacle mode): the race is lost after
+ * 2 * numCols turns, and distractors appear independently every turn, so
+ * their damage only enters as an expected cost of the cell moved into.
+ *
+ * The optimal expected value (prize if won, minus all damage) and the
+ * optimal action of every state are found by backward induction over the
+ * turns, and kept in flat arrays indexed [turn * numStates + state], where
+ * state = cell * 2 + (obstacle mode ? 1 : 0).
+ */
+public class FiniteHorizonSolver {
+
+	private static final Action[] ACTIONS = Action.values();
+
+	// Tracks with at least this many cells are solved in parallel.
+	private static final int PARALLEL_CELLS = 4096;
+
+	private Track track;
+	private Cycle cycle;
+	private TransitionTable table;
+	private int numCols;
+	private int numStates;
+	// Last turn on which the race can still be running.
+	private int horizon;
+	private double prize;
+	private boolean[] isGoal;
+	// Expected distractor damage of moving into each cell.
+	private double[] distractorCost;
+
+	// Value of every (turn, state), with an all zero layer after the horizon.
+	private double[] values;
+	// Ordinal of the best action of every (turn, state).
+	private byte[] policy;
+	// The same tables, when read from a ValueTableCache file instead.
+	private DoubleBuffer mappedValues;
+	private ByteBuffer mappedPolicy;
+
+	/**
+	 * Returns the solved solver for a track and a cycle, shared by every
+	 * cycle with the same speed, wildness and reliability
+	 * @param track
+	 * @param cycle
+	 * @return solver
+	 */
+	public static FiniteHorizonSolver forCycle(Track track, Cycle cycle) {
+		int i = (cycle.getSpeed().ordinal() * 2 + (cycle.isWild() ? 1 : 0))
+				* 2 + (cycle.isReliable() ? 1 : 0);
+		// Solvers are kept on the track, indexed by capability, as they
+		// refer to it and would keep it alive in a map keyed by track.
+		FiniteHorizonSolver[] forTrack;
+		synchronized (track) {
+			forTrack = track.getCache(FiniteHorizonSolver[].class);
+			if (forTrack == null) {
+				forTrack = new FiniteHorizonSolver[
+						Cycle.Speed.values().length * 4];
+				track.putCache(FiniteHorizonSolver[].class, forTrack);
+			}
+		}
+		synchronized (forTrack) {
+			if (forTrack[i] == null) {
+				FiniteHorizonSolver solver = ValueTableCache.load(track, cycle);
+				if (solver == null) {
+					solver = new FiniteHorizonSolver(track, cycle);
+					if (solver.getNumCells() >= PARALLEL_CELLS) {
+						new ParallelValueIteration(solver).solveFiniteHorizon();
+					} else {
+						solver.solve();
+					}
+					ValueTableCache.store(solver);
+				}
+				forTrack[i] = solver;
+			}
+			return forTrack[i];
+		}
+	}
+
+	/**
+	 * Sets up the model with the 2 * numCols turn limit of races without
+	 * opponents. Call solve() before querying.
+	 * @param track A track without opponents
+	 * @param cycle
+	 */
+	public FiniteHorizonSolver(Track track, Cycle cycle) {
+		this(track, cycle, 2 * track.getNumCols());
+	}
+
+	/**
+	 * Sets up the model with any turn limit, e.g. the 100 * numCols limit of
+	 * races with opponents, whose moves are then ignored
+	 * @param track
+	 * @param cycle
+	 * @param horizon Last turn on which the race can still be running
+	 */
+	public FiniteHorizonSolver(Track track, Cycle cycle, int horizon) {
+		this.track = track;
+		this.cycle = cycle;
+		this.horizon = horizon;
+		table = track.getTransitionTable(cycle);
+		numCols = track.getNumCols();
+		int numCells = track.getNumRows() * numCols;
+		numStates = numCells * 2;
+		prize = track.getPrize();
+
+		isGoal = new boolean[numCells];
+		distractorCost = new double[numCells];
+		double[][] distractorMatrix = track.getIndex().getDistractorMatrix();
+		double damage = RaceSimTools.getDistractorDamage(cycle);
+		for (int cell = 0; cell < numCells; cell++) {
+			int row = cell / numCols;
+			int col = cell % numCols;
+			isGoal[cell] = track.getCellType(row, col) == Track.CellType.GOAL;
+			distractorCost[cell] = distractorMatrix[row][col] * damage;
+		}
+	}
+
+	/**
+	 * Runs the backward induction
+	 */
+	public void solve() {
+		allocate();
+		for (int turn = horizon; turn >= 0; turn--) {
+			backup(turn, 0, getNumCells());
+		}
+	}
+
+	/**
+	 * Creates the value and policy arrays of every turn, if not done yet
+	 */
+	synchronized void allocate() {
+		if (values == null) {
+			values = new double[(horizon + 2) * numStates];
+			policy = new byte[(horizon + 1) * numStates];
+		}
+	}
+
+	/**
+	 * Uses solved tables of turns 0 to horizon instead of solving, in the
+	 * layout of the value and policy arrays
+	 * @param values
+	 * @param policy
+	 */
+	void map(DoubleBuffer values, ByteBuffer policy) {
+		mappedValues = values;
+		mappedPolicy = policy;
+	}
+
+	double[] getValues() {
+		return values;
+	}
+
+	byte[] getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Computes the values and actions of the states of the cells in
+	 * [fromCell, toCell) on a turn, from the values of the next turn. Ranges
+	 * of the same turn are independent of each other.
+	 * @param turn
+	 * @param fromCell
+	 * @param toCell
+	 * @return largest change of a value from the next turn
+	 */
+	double backup(int turn, int fromCell, int toCell) {
+		int base = turn * numStates;
+		return backup(values, base + numStates, values, base, policy, 1.0,
+				fromCell, toCell);
+	}
+
+	/**
+	 * The Bellman backup shared by every solver. Computes the values and
+	 * actions of the states of the cells in [fromCell, toCell) from the
+	 * values of the following turn.
+	 * @param source Values of the following turn
+	 * @param sourceBase Index of state 0 in source
+	 * @param target Where the new values are written
+	 * @param base Index of state 0 in target and actions
+	 * @param actions Where the ordinals of the best actions are written
+	 * @param discount Factor on the values of the following turn
+	 * @param fromCell
+	 * @param toCell
+	 * @return largest change of a value from source, as a convergence
+	 * residual
+	 */
+	double backup(double[] source, int sourceBase, double[] target, int base,
+			byte[] actions, double discount, int fromCell, int toCell) {
+		int next = sourceBase;
+		double residual = 0;
+		for (int cell = fromCell; cell < toCell; cell++) {
+			for (int mode = 0; mode < 2; mode++) {
+				int s = cell * 2 + mode;
+
+				// Races at the goal are already won
+				if (isGoal[cell]) {
+					target[base + s] = 0;
+					actions[base + s] = (byte) Action.ST.ordinal();
+					continue;
+				}
+				double best = Double.NEGATIVE_INFINITY;
+				int bestAction = Action.ST.ordinal();
+				int tried = 0;
+				for (Action action : ACTIONS) {
+					Action a = table.normalise(action, mode == 1, false);
+					if ((tried & (1 << a.ordinal())) != 0) {
+						continue;
+					}
+					tried |= 1 << a.ordinal();
+					double q = 0;
+					int end = table.getEnd(cell, a);
+					for (int j = table.getStart(cell, a); j < end; j++) {
+						int c = table.getNextCell(j);
+						double v = -table.getDamage(j) - distractorCost[c];
+						if (isGoal[c]) {
+							v += prize;
+						} else {
+							v += discount * source[next + c * 2
+									+ (table.getNextObstacle(j, mode == 1) ?
+											1 : 0)];
+						}
+						q += table.getProbability(j) * v;
+					}
+					if (q > best) {
+						best = q;
+						bestAction = action.ordinal();
+					}
+				}
+				residual = Math.max(residual,
+						Math.abs(best - source[next + s]));
+				target[base + s] = best;
+				actions[base + s] = (byte) bestAction;
+			}
+		}
+		return residual;
+	}
+
+	/**
+	 * Returns the state index of a position and obstacle mode
+	 * @param g
+	 * @param isObstacle
+	 * @return cell index * 2, plus 1 in obstacle mode
+	 */
+	public int state(GridCell g, boolean isObstacle) {
+		return (g.getRow() * numCols + g.getCol()) * 2 + (isObstacle ? 1 : 0);
+	}
+
+	/**
+	 * Returns the optimal expected value of a state
+	 * @param turnNo Turn number of the state, from 0 at the start
+	 * @param g Player position
+	 * @param isObstacle Whether the player is in obstacle mode
+	 * @return expected prize minus damage, 0 once the race is lost
+	 */
+	public double getValue(int turnNo, GridCell g, boolean isObstacle) {
+		if (turnNo < 0 || turnNo > horizon) {
+			return 0;
+		}
+		int i = turnNo * numStates + state(g, isObstacle);
+		return values != null ? values[i] : mappedValues.get(i);
+	}
+
+	/**
+	 * Returns the optimal action in a state
+	 * @param turnNo
+	 * @param g
+	 * @param isObstacle
+	 * @return best action, ST once the race is lost
+	 */
+	public Action getAction(int turnNo, GridCell g, boolean isObstacle) {
+		if (turnNo < 0 || turnNo > horizon) {
+			return Action.ST;
+		}
+		int i = turnNo * numStates + state(g, isObstacle);
+		return ACTIONS[policy != null ? policy[i] : mappedPolicy.get(i)];
+	}
+
+	public int getHorizon() {
+		return horizon;
+	}
+
+	public int getNumStates() {
+		return numStates;
+	}
+
+	public int getNumCells() {
+		return numStates / 2;
+	}
+
+	public Track getTrack() {
+		return track;
+	}
+
+	public Cycle getCycle() {
+		return cycle;
+	}
+}
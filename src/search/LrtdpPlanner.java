@@ -0,0 +1,356 @@
+package search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import problem.Action;
+import problem.Cycle;
+import problem.GridCell;
+import problem.Player;
+import problem.RaceSimTools;
+import problem.TransitionTable;
+import problem.Track;
+import problem.TrackIndex;
+
+/**
+ * Labeled real-time dynamic programming (LRTDP) over the player's
+ * (turn, cell, obstacle mode). Trials follow the greedy action from the
+ * current state, sampling outcomes from the player's transition table (the
+ * compiled form of RaceSimTools.nextPlayers), and back up each state
+ * visited. A state is labeled solved once no value reachable from it under
+ * the greedy policy changes by more than EPSILON.
+ *
+ * Opponents are not simulated. Reaching the goal on turn t instead earns
+ * the prize times the probability that no opponent has reached it before,
+ * from the track's shared OpponentForecast, which is observed after every
+ * step of the race. Values start from an upper bound: the prize discounted
+ * the same way at the earliest turn the goal could be reached, from the
+ * track's turns to goal. Distractors cost their expected damage.
+ *
+ * Values and labels are kept between calls to plan(), so later turns of
+ * the same race start from everything learnt so far. The loss
+ * probabilities used are a snapshot of the forecast. If an observation
+ * changes any of them by more than the labels allow, every label is
+ * dropped, and states are only labeled again once their residuals under
+ * the new forecast are small. The old values are kept as a starting point.
+ */
+public class LrtdpPlanner {
+
+	// Largest change of a value for a state to be labeled solved.
+	private static final double EPSILON = 1e-3;
+
+	private static final Action[] ACTIONS = Action.values();
+
+	private Track track;
+	private Cycle cycle;
+	private TransitionTable table;
+	private Random rng;
+	private int numCols;
+	private int numStates;
+	private int horizon;
+	private double prize;
+	private boolean[] isGoal;
+	private double[] distractorCost;
+	private int[] turnsToGoal;
+	private OpponentForecast forecast;
+	// Loss probability by each turn, NaN until read from the forecast.
+	private double[] lossProbability;
+
+	// Values of the states backed up so far, keyed by turn * numStates + state.
+	private Map<Long, Double> values;
+	private Set<Long> solved;
+
+	/**
+	 * Creates a planner for one player on a track
+	 * @param track
+	 * @param cycle
+	 * @param rng Used to sample trials
+	 */
+	public LrtdpPlanner(Track track, Cycle cycle, Random rng) {
+		this.track = track;
+		this.cycle = cycle;
+		this.rng = rng;
+		table = track.getTransitionTable(cycle);
+		numCols = track.getNumCols();
+		int numCells = track.getNumRows() * numCols;
+		numStates = numCells * 2;
+		horizon = track.getOpponents().isEmpty() ? 2 * numCols
+				: 100 * numCols;
+		prize = track.getPrize();
+
+		TrackIndex index = track.getIndex();
+		turnsToGoal = index.getTurnsToGoal(cycle);
+		isGoal = new boolean[numCells];
+		distractorCost = new double[numCells];
+		double[][] distractorMatrix = index.getDistractorMatrix();
+		double damage = RaceSimTools.getDistractorDamage(cycle);
+		for (int cell = 0; cell < numCells; cell++) {
+			int row = cell / numCols;
+			int col = cell % numCols;
+			isGoal[cell] = track.getCellType(row, col) == Track.CellType.GOAL;
+			distractorCost[cell] = distractorMatrix[row][col] * damage;
+		}
+
+		forecast = OpponentForecast.forTrack(track);
+		lossProbability = new double[horizon + 1];
+		Arrays.fill(lossProbability, Double.NaN);
+		values = new HashMap<Long, Double>();
+		solved = new HashSet<Long>();
+	}
+
+	/**
+	 * Runs trials from a state until it is solved or time runs out, and
+	 * returns the greedy action
+	 * @param turnNo
+	 * @param player
+	 * @param time Time limit in nanoseconds
+	 * @return best action found
+	 */
+	public Action plan(int turnNo, Player player, long time) {
+		long deadline = System.nanoTime() + time;
+		if (refreshForecast(turnNo)) {
+			solved.clear();
+		}
+		long root = key(turnNo, player);
+		while (!isSolved(root) && System.nanoTime() < deadline) {
+			trial(root, deadline);
+		}
+		return ACTIONS[greedy(root)];
+	}
+
+	/**
+	 * Rereads the loss probabilities used so far from the forecast, from
+	 * turnNo on, and returns true if any moved a goal value by more than
+	 * EPSILON
+	 */
+	private boolean refreshForecast(int turnNo) {
+		boolean changed = false;
+		for (int t = 0; t < lossProbability.length; t++) {
+			double old = lossProbability[t];
+			if (t < turnNo) {
+				lossProbability[t] = Double.NaN;
+			} else if (!Double.isNaN(old)) {
+				lossProbability[t] = forecast.getLossProbability(t);
+				changed |= prize * Math.abs(lossProbability[t] - old)
+						> EPSILON;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Returns the probability that an opponent has reached the goal by a
+	 * turn, as of the last refresh
+	 */
+	private double getLossProbability(int turn) {
+		double p = lossProbability[turn];
+		if (Double.isNaN(p)) {
+			p = forecast.getLossProbability(turn);
+			lossProbability[turn] = p;
+		}
+		return p;
+	}
+
+	private long key(int turnNo, Player player) {
+		GridCell g = player.getPosition();
+		return (long) turnNo * numStates
+				+ (g.getRow() * numCols + g.getCol()) * 2
+				+ (player.isObstacle() ? 1 : 0);
+	}
+
+	private void trial(long s, long deadline) {
+		List<Long> visited = new ArrayList<Long>();
+		while (!isSolved(s)) {
+			visited.add(s);
+			int a = greedy(s);
+			update(s, a);
+			if (System.nanoTime() >= deadline) {
+				return;
+			}
+			s = sample(s, a);
+		}
+
+		// Label states from the end of the trial back to its start
+		for (int i = visited.size() - 1; i >= 0; i--) {
+			if (!checkSolved(visited.get(i)) || System.nanoTime() >= deadline) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Labels the greedy graph from s solved if every residual in it is at
+	 * most EPSILON, and otherwise backs all of it up
+	 */
+	private boolean checkSolved(long s) {
+		boolean converged = true;
+		List<Long> open = new ArrayList<Long>();
+		List<Long> closed = new ArrayList<Long>();
+		Set<Long> seen = new HashSet<Long>();
+		if (!isSolved(s)) {
+			open.add(s);
+			seen.add(s);
+		}
+		while (!open.isEmpty()) {
+			long t = open.remove(open.size() - 1);
+			closed.add(t);
+			int a = greedy(t);
+			if (Math.abs(q(t, a) - getValue(t)) > EPSILON) {
+				converged = false;
+				continue;
+			}
+			int turn = (int) (t / numStates);
+			int cell = (int) (t % numStates) / 2;
+			boolean mode = t % 2 == 1;
+			Action effective = table.normalise(ACTIONS[a], mode, false);
+			int end = table.getEnd(cell, effective);
+			for (int j = table.getStart(cell, effective); j < end; j++) {
+				if (table.getProbability(j) > 0) {
+					long next = successor(turn, j, mode);
+					if (!isSolved(next) && seen.add(next)) {
+						open.add(next);
+					}
+				}
+			}
+		}
+		if (converged) {
+			solved.addAll(closed);
+		} else {
+			for (int i = closed.size() - 1; i >= 0; i--) {
+				long t = closed.get(i);
+				update(t, greedy(t));
+			}
+		}
+		return converged;
+	}
+
+	private long successor(int turn, int outcome, boolean mode) {
+		return (long) (turn + 1) * numStates + table.getNextCell(outcome) * 2
+				+ (table.getNextObstacle(outcome, mode) ? 1 : 0);
+	}
+
+	private long sample(long s, int a) {
+		int turn = (int) (s / numStates);
+		int cell = (int) (s % numStates) / 2;
+		boolean mode = s % 2 == 1;
+		Action effective = table.normalise(ACTIONS[a], mode, false);
+		int j = table.sample(cell, effective, rng.nextDouble());
+		return successor(turn, j, mode);
+	}
+
+	private void update(long s, int a) {
+		values.put(s, q(s, a));
+	}
+
+	/**
+	 * Returns the ordinal of the action with the highest Q-value
+	 */
+	private int greedy(long s) {
+		int cell = (int) (s % numStates) / 2;
+		boolean mode = s % 2 == 1;
+		double best = Double.NEGATIVE_INFINITY;
+		int bestAction = Action.ST.ordinal();
+		int tried = 0;
+		for (Action action : ACTIONS) {
+			Action a = table.normalise(action, mode, false);
+			if ((tried & (1 << a.ordinal())) != 0) {
+				continue;
+			}
+			tried |= 1 << a.ordinal();
+			double q = q(s, action.ordinal());
+			if (q > best) {
+				best = q;
+				bestAction = action.ordinal();
+			}
+		}
+		return bestAction;
+	}
+
+	private double q(long s, int a) {
+		int turn = (int) (s / numStates);
+		int cell = (int) (s % numStates) / 2;
+		boolean mode = s % 2 == 1;
+		Action effective = table.normalise(ACTIONS[a], mode, false);
+		double winProbability = 1.0 - getLossProbability(turn);
+		double q = 0;
+		int end = table.getEnd(cell, effective);
+		for (int j = table.getStart(cell, effective); j < end; j++) {
+			int c = table.getNextCell(j);
+			double v = -table.getDamage(j) - distractorCost[c];
+			if (isGoal[c]) {
+				v += prize * winProbability;
+			} else {
+				v += getValue(successor(turn, j, mode));
+			}
+			q += table.getProbability(j) * v;
+		}
+		return q;
+	}
+
+	/**
+	 * Returns the value of a state, or its heuristic if never backed up
+	 */
+	private double getValue(long s) {
+		int turn = (int) (s / numStates);
+		int cell = (int) (s % numStates) / 2;
+		if (turn > horizon || isGoal[cell]) {
+			return 0;
+		}
+		Double v = values.get(s);
+		if (v != null) {
+			return v;
+		}
+
+		// Upper bound: no damage and the earliest possible finish
+		if (turnsToGoal[cell] == TrackIndex.UNREACHABLE) {
+			return 0;
+		}
+		int finish = turn + turnsToGoal[cell] + (int) (s % 2);
+		if (finish > horizon) {
+			return 0;
+		}
+		return prize * (1.0 - getLossProbability(finish - 1));
+	}
+
+	private boolean isSolved(long s) {
+		int turn = (int) (s / numStates);
+		int cell = (int) (s % numStates) / 2;
+		return turn > horizon || isGoal[cell] || solved.contains(s);
+	}
+
+	/**
+	 * Returns the current value estimate of a state
+	 * @param turnNo
+	 * @param player
+	 * @return expected prize minus damage
+	 */
+	public double getValue(int turnNo, Player player) {
+		return getValue(key(turnNo, player));
+	}
+
+	public boolean isSolved(int turnNo, Player player) {
+		return isSolved(key(turnNo, player));
+	}
+
+	/**
+	 * Returns the number of states backed up so far
+	 * @return number of states
+	 */
+	public int getNumStates() {
+		return values.size();
+	}
+
+	public Track getTrack() {
+		return track;
+	}
+
+	public Cycle getCycle() {
+		return cycle;
+	}
+}
@@ -0,0 +1,235 @@
+package search;
+
+import java.util.Arrays;
+import java.util.List;
+
+import problem.CellSet;
+import problem.GridCell;
+import problem.Opponent;
+import problem.OpponentTable;
+import problem.RaceSimTools;
+import problem.RaceState;
+import problem.Track;
+
+/**
+ * Forecasts where each opponent will be on each future turn, by pushing its
+ * position distribution forward through its compiled policy. Opponents never
+ * interact with each other, so each one is forecast on its own. Player
+ * cycles in obstacle mode are ignored, which can only make an opponent
+ * slower in reality.
+ *
+ * For every opponent and turn the forecast holds the occupancy of every cell
+ * and the probability that the opponent has reached the goal by then, so
+ * the risk of losing the race by a given turn is an O(1) lookup. Turns are
+ * computed lazily, the occupancy arrays growing only as far as turns are
+ * asked for, and observe() restarts the forecast from the positions
+ * actually seen, reusing the arrays.
+ */
+public class OpponentForecast {
+
+	private static final int NUM_ACTIONS = OpponentTable.ACTIONS.length;
+
+	private Track track;
+	private int numCells;
+	private int numOpponents;
+	// Number of turns ahead that are forecast.
+	private int horizon;
+	private boolean[] isGoal;
+	// Cell reached by each (cell, action), the same for every opponent.
+	private int[] nextCell;
+	// Per opponent, probability of each (cell, action).
+	private double[][] actionProbability;
+
+	// Turn number that relative turn 0 stands for.
+	private int baseTurn;
+	// Per opponent, occupancy of each cell for the relative turns computed.
+	private double[][] occupancy;
+	// Per opponent, probability of having reached the goal by each turn.
+	private double[][] goalProbability;
+	// Relative turns up to this one have been computed.
+	private int computed;
+
+	/**
+	 * Returns the forecast of a track over the whole race, shared by
+	 * everything planning on the track. It starts from the track's opponent
+	 * start positions, and whoever runs the race calls observe() after every
+	 * step. Kept on the track, as the forecast refers to it.
+	 * @param track
+	 * @return forecast
+	 */
+	public static OpponentForecast forTrack(Track track) {
+		synchronized (track) {
+			OpponentForecast forecast = track.getCache(OpponentForecast.class);
+			if (forecast == null) {
+				int numCols = track.getNumCols();
+				forecast = new OpponentForecast(track, track.getOpponents()
+						.isEmpty() ? 2 * numCols : 100 * numCols);
+				track.putCache(OpponentForecast.class, forecast);
+			}
+			return forecast;
+		}
+	}
+
+	/**
+	 * Creates a forecast starting from the track's opponent start positions
+	 * @param track
+	 * @param horizon Number of turns to forecast. Later turns are treated as
+	 * the last one.
+	 */
+	public OpponentForecast(Track track, int horizon) {
+		this.track = track;
+		this.horizon = horizon;
+		int numCols = track.getNumCols();
+		numCells = track.getNumRows() * numCols;
+		List<Opponent> opponents = track.getOpponents();
+		numOpponents = opponents.size();
+
+		isGoal = new boolean[numCells];
+		nextCell = new int[numCells * NUM_ACTIONS];
+		CellSet noObstacles = new CellSet(track);
+		for (int cell = 0; cell < numCells; cell++) {
+			GridCell g = track.getCell(cell);
+			isGoal[cell] = track.getCellType(g) == Track.CellType.GOAL;
+			for (int a = 0; a < NUM_ACTIONS; a++) {
+				GridCell next = RaceSimTools.furthestMove(g,
+						OpponentTable.ACTIONS[a], track, noObstacles, false);
+				nextCell[cell * NUM_ACTIONS + a] = track.getCellIndex(next);
+			}
+		}
+
+		actionProbability = new double[numOpponents][numCells * NUM_ACTIONS];
+		occupancy = new double[numOpponents][numCells];
+		goalProbability = new double[numOpponents][horizon + 1];
+		for (int i = 0; i < numOpponents; i++) {
+			OpponentTable table = track.getOpponentTable(
+					opponents.get(i).getPolicy());
+			for (int j = 0; j < numCells * NUM_ACTIONS; j++) {
+				actionProbability[i][j] = table.getProbability(
+						j / NUM_ACTIONS, j % NUM_ACTIONS);
+			}
+		}
+		start(0, opponents);
+	}
+
+	/**
+	 * Restarts the forecast from the opponent positions in a state. Call
+	 * after every step of the race.
+	 * @param state
+	 */
+	public synchronized void observe(RaceState state) {
+		start(state.getTurnNo(), state.getOpponents());
+	}
+
+	private void start(int turnNo, List<Opponent> opponents) {
+		baseTurn = turnNo;
+		computed = 0;
+		for (int i = 0; i < numOpponents; i++) {
+			Arrays.fill(occupancy[i], 0, numCells, 0.0);
+			int cell = track.getCellIndex(opponents.get(i).getPosition());
+			occupancy[i][cell] = 1.0;
+			goalProbability[i][0] = isGoal[cell] ? 1.0 : 0.0;
+		}
+	}
+
+	/**
+	 * Pushes every opponent's distribution forward up to relative turn t
+	 */
+	private void computeUpTo(int t) {
+		while (computed < t) {
+			int from = computed * numCells;
+			int to = from + numCells;
+			for (int i = 0; i < numOpponents; i++) {
+				if (occupancy[i].length < to + numCells) {
+					// Double the turns held, up to the horizon
+					occupancy[i] = Arrays.copyOf(occupancy[i], Math.min(
+							2 * occupancy[i].length, (horizon + 1) * numCells));
+				}
+				double[] occ = occupancy[i];
+				double[] prob = actionProbability[i];
+				Arrays.fill(occ, to, to + numCells, 0.0);
+				double reached = goalProbability[i][computed];
+				for (int cell = 0; cell < numCells; cell++) {
+					double m = occ[from + cell];
+					if (m == 0) {
+						continue;
+					}
+
+					// The race is over once the goal is reached
+					if (isGoal[cell]) {
+						occ[to + cell] += m;
+						continue;
+					}
+					for (int a = 0; a < NUM_ACTIONS; a++) {
+						double p = prob[cell * NUM_ACTIONS + a];
+						if (p > 0) {
+							int next = nextCell[cell * NUM_ACTIONS + a];
+							occ[to + next] += m * p;
+							if (isGoal[next]) {
+								reached += m * p;
+							}
+						}
+					}
+				}
+				goalProbability[i][computed + 1] = Math.min(reached, 1.0);
+			}
+			computed++;
+		}
+	}
+
+	private int relative(int turnNo) {
+		return Math.max(0, Math.min(horizon, turnNo - baseTurn));
+	}
+
+	/**
+	 * Returns the probability that an opponent is in a cell on a turn
+	 * @param i Opponent index
+	 * @param turnNo Race turn number
+	 * @param g
+	 * @return occupancy probability
+	 */
+	public synchronized double getOccupancy(int i, int turnNo, GridCell g) {
+		int t = relative(turnNo);
+		computeUpTo(t);
+		return occupancy[i][t * numCells + track.getCellIndex(g)];
+	}
+
+	/**
+	 * Returns the probability that an opponent has reached the goal by a turn
+	 * @param i Opponent index
+	 * @param turnNo Race turn number
+	 * @return cumulative goal probability
+	 */
+	public synchronized double getGoalProbability(int i, int turnNo) {
+		int t = relative(turnNo);
+		computeUpTo(t);
+		return goalProbability[i][t];
+	}
+
+	/**
+	 * Returns the probability that some opponent has reached the goal by a
+	 * turn, i.e. that the race is lost unless the player finishes first
+	 * @param turnNo Race turn number
+	 * @return loss probability
+	 */
+	public synchronized double getLossProbability(int turnNo) {
+		int t = relative(turnNo);
+		computeUpTo(t);
+		double none = 1.0;
+		for (int i = 0; i < numOpponents; i++) {
+			none *= 1.0 - goalProbability[i][t];
+		}
+		return 1.0 - none;
+	}
+
+	public int getNumOpponents() {
+		return numOpponents;
+	}
+
+	public int getHorizon() {
+		return horizon;
+	}
+
+	public Track getTrack() {
+		return track;
+	}
+}
@@ -0,0 +1,34 @@
+package search;
+
+import java.util.Map;
+
+import problem.Action;
+import problem.GridCell;
+
+// An MCTS search from one state of a race on several threads, kept between
+// turns. RootParallelSearch grows a tree per thread and TreeParallelSearch
+// shares a single tree between them.
+public interface ParallelSearch {
+	// Search for the given time in nanoseconds.
+	void loopSearch(long time);
+
+	// Visits of each action from the root.
+	Map<Action, Integer> getActionVisits();
+
+	// The action with the best value from the root.
+	Action bestAction();
+
+	// Mean value of the root.
+	double getValue();
+
+	// Total visits of the root, about the number of search iterations.
+	int getVisits();
+
+	// The search continuing from where the cycle actually went after an
+	// action.
+	ParallelSearch advance(Action action, GridCell observed, int turnNo);
+
+	GridCell getCell();
+
+	int getNumThreads();
+}
@@ -0,0 +1,229 @@
+package search;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import problem.Action;
+import problem.GridCell;
+
+/**
+ * Runs the Bellman backups of a FiniteHorizonSolver on a ForkJoinPool, with
+ * every sweep split into blocks of whole track rows. Blocks of one sweep
+ * only read the values of the previous turn or sweep, so they run without
+ * any locking.
+ *
+ * Two kinds of solve are supported. solveFiniteHorizon() fills in the
+ * solver's own turn layers, exactly like FiniteHorizonSolver.solve().
+ * solveStationary() ignores the turn number and sweeps a pair of value
+ * buffers until the residual (largest change of a value in a sweep) falls
+ * below a threshold, or until a time limit, so long horizons cost no more
+ * memory than one turn.
+ */
+public class ParallelValueIteration {
+
+	// Shared by every solve, one worker per core.
+	private static final ForkJoinPool pool = new ForkJoinPool();
+
+	// Cells in a block are at least this many, rounded up to whole rows.
+	private static final int MIN_BLOCK_CELLS = 1024;
+
+	private static final Action[] ACTIONS = Action.values();
+
+	private FiniteHorizonSolver solver;
+	private int numCells;
+	private int blockCells;
+
+	// Stationary values and actions, indexed by state.
+	private double[] values;
+	private byte[] policy;
+	// Residual of every sweep so far.
+	private double[] residuals;
+	private int numSweeps;
+
+	/**
+	 * Creates a parallel solve for the model of a solver
+	 * @param solver
+	 */
+	public ParallelValueIteration(FiniteHorizonSolver solver) {
+		this.solver = solver;
+		numCells = solver.getNumCells();
+		int numCols = solver.getTrack().getNumCols();
+		int rows = Math.max(1, (MIN_BLOCK_CELLS + numCols - 1) / numCols);
+		blockCells = rows * numCols;
+		residuals = new double[16];
+	}
+
+	/**
+	 * Backs up cells [from, to) and returns the largest residual
+	 */
+	private class Sweep extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+
+		private double[] source;
+		private int sourceBase;
+		private double[] target;
+		private int base;
+		private byte[] actions;
+		private double discount;
+		private int from;
+		private int to;
+
+		Sweep(double[] source, int sourceBase, double[] target, int base,
+				byte[] actions, double discount, int from, int to) {
+			this.source = source;
+			this.sourceBase = sourceBase;
+			this.target = target;
+			this.base = base;
+			this.actions = actions;
+			this.discount = discount;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Double compute() {
+			if (to - from <= blockCells) {
+				return solver.backup(source, sourceBase, target, base, actions,
+						discount, from, to);
+			}
+
+			// Split on a row boundary
+			int blocks = (to - from + blockCells - 1) / blockCells;
+			int mid = from + (blocks / 2) * blockCells;
+			Sweep left = new Sweep(source, sourceBase, target, base, actions,
+					discount, from, mid);
+			Sweep right = new Sweep(source, sourceBase, target, base, actions,
+					discount, mid, to);
+			left.fork();
+			double r = right.compute();
+			return Math.max(r, left.join());
+		}
+	}
+
+	/**
+	 * Solves the solver's finite horizon problem, one turn layer at a time
+	 * from the last. The solver can be queried afterwards as if solve() had
+	 * been called.
+	 */
+	public void solveFiniteHorizon() {
+		solver.allocate();
+		for (int turn = solver.getHorizon(); turn >= 0; turn--) {
+			addResidual(pool.invoke(new LayerSweep(turn)));
+		}
+	}
+
+	/**
+	 * Backs up one turn layer of the solver
+	 */
+	private class LayerSweep extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+
+		private int turn;
+		private int from;
+		private int to;
+
+		LayerSweep(int turn) {
+			this(turn, 0, numCells);
+		}
+
+		LayerSweep(int turn, int from, int to) {
+			this.turn = turn;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Double compute() {
+			if (to - from <= blockCells) {
+				return solver.backup(turn, from, to);
+			}
+			int blocks = (to - from + blockCells - 1) / blockCells;
+			int mid = from + (blocks / 2) * blockCells;
+			LayerSweep left = new LayerSweep(turn, from, mid);
+			left.fork();
+			double r = new LayerSweep(turn, mid, to).compute();
+			return Math.max(r, left.join());
+		}
+	}
+
+	/**
+	 * Runs value iteration without a turn limit, continuing from the values
+	 * of any previous call
+	 * @param discount Factor on the value of the following turn, at most 1
+	 * @param threshold Stop once a sweep changes no value by more than this
+	 * @param time Stop after this many nanoseconds, checked between sweeps
+	 * @return residual of the last sweep
+	 */
+	public double solveStationary(double discount, double threshold,
+			long time) {
+		long deadline = System.nanoTime() + time;
+		int numStates = solver.getNumStates();
+		if (values == null) {
+			values = new double[numStates];
+			policy = new byte[numStates];
+		}
+		double[] next = values.clone();
+		double residual = Double.POSITIVE_INFINITY;
+		while (residual > threshold && System.nanoTime() < deadline) {
+			residual = pool.invoke(new Sweep(values, 0, next, 0, policy,
+					discount, 0, numCells));
+			addResidual(residual);
+
+			// Swap buffers
+			double[] temp = values;
+			values = next;
+			next = temp;
+		}
+		return residual;
+	}
+
+	private void addResidual(double residual) {
+		if (numSweeps == residuals.length) {
+			residuals = Arrays.copyOf(residuals, numSweeps * 2);
+		}
+		residuals[numSweeps++] = residual;
+	}
+
+	/**
+	 * Returns the stationary value of a state
+	 * @param g
+	 * @param isObstacle
+	 * @return value, 0 before solveStationary() is called
+	 */
+	public double getValue(GridCell g, boolean isObstacle) {
+		if (values == null) {
+			return 0;
+		}
+		return values[solver.state(g, isObstacle)];
+	}
+
+	/**
+	 * Returns the stationary best action of a state
+	 * @param g
+	 * @param isObstacle
+	 * @return best action, ST before solveStationary() is called
+	 */
+	public Action getAction(GridCell g, boolean isObstacle) {
+		if (policy == null) {
+			return Action.ST;
+		}
+		return ACTIONS[policy[solver.state(g, isObstacle)]];
+	}
+
+	/**
+	 * Returns the residual of every sweep or turn layer so far, in order
+	 * @return residuals
+	 */
+	public double[] getResiduals() {
+		return Arrays.copyOf(residuals, numSweeps);
+	}
+
+	public int getNumSweeps() {
+		return numSweeps;
+	}
+
+	public FiniteHorizonSolver getSolver() {
+		return solver;
+	}
+}
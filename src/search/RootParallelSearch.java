@@ -0,0 +1,166 @@
+package search;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import problem.Action;
+import problem.Cycle;
+import problem.GridCell;
+import problem.SplitRandom;
+import problem.Track;
+
+// Root parallel MCTS: every thread grows its own SearchNode tree from the
+// same state with its own random stream, and the root statistics of all
+// the trees are merged to choose the action. The trees share only
+// read-only track data, so threads never wait on each other while
+// searching.
+public class RootParallelSearch implements ParallelSearch {
+	// System property for the number of threads, e.g. -DsearchThreads=8.
+	public static final String threadsProperty = "searchThreads";
+
+	private SearchNode[] roots; // One tree per thread.
+
+	// Number of threads to use by default: the searchThreads property, or
+	// one per core.
+	public static int defaultThreads() {
+		return Math.max(1, Integer.getInteger(threadsProperty, Runtime
+				.getRuntime().availableProcessors()));
+	}
+
+	public RootParallelSearch(GridCell cell, Cycle cycle, Track track,
+			double[][] distractorMatrix, SplitRandom rng, int turnNo,
+			int numThreads) {
+		roots = new SearchNode[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			roots[i] = new SearchNode(cell, cycle, track, distractorMatrix,
+					rng.split(), turnNo);
+		}
+	}
+
+	private RootParallelSearch(SearchNode[] roots) {
+		this.roots = roots;
+	}
+
+	// Search every tree for the given time in nanoseconds. Tree 0 is
+	// searched on the calling thread.
+	@Override
+	public void loopSearch(final long time) {
+		Thread[] threads = new Thread[roots.length - 1];
+		for (int i = 0; i < threads.length; i++) {
+			final SearchNode root = roots[i + 1];
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					root.loopSearch(time);
+				}
+			});
+			threads[i].start();
+		}
+		roots[0].loopSearch(time);
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	// Visits of each root action, summed over the trees.
+	@Override
+	public Map<Action, Integer> getActionVisits() {
+		Map<Action, Integer> visits = new EnumMap<Action, Integer>(
+				Action.class);
+		for (SearchNode root : roots) {
+			for (Action a : root.getActions()) {
+				int v = root.getChanceNode(a).getVisits();
+				Integer sum = visits.get(a);
+				visits.put(a, sum == null ? v : sum + v);
+			}
+		}
+		return visits;
+	}
+
+	// Mean value of each root action, over every visit in every tree.
+	public Map<Action, Double> getActionValues() {
+		Map<Action, Double> rewards = new EnumMap<Action, Double>(
+				Action.class);
+		for (SearchNode root : roots) {
+			for (Action a : root.getActions()) {
+				double r = root.getChanceNode(a).getTotalReward();
+				Double sum = rewards.get(a);
+				rewards.put(a, sum == null ? r : sum + r);
+			}
+		}
+		Map<Action, Integer> visits = getActionVisits();
+		for (Map.Entry<Action, Double> e : rewards.entrySet()) {
+			e.setValue(e.getValue() / visits.get(e.getKey()));
+		}
+		return rewards;
+	}
+
+	// The action with the best merged value.
+	@Override
+	public Action bestAction() {
+		Action best = null;
+		double bestUtility = -Double.MAX_VALUE;
+		for (Map.Entry<Action, Double> e : getActionValues().entrySet()) {
+			if (e.getValue() > bestUtility) {
+				best = e.getKey();
+				bestUtility = e.getValue();
+			}
+		}
+		return best;
+	}
+
+	// Mean value of the root over every tree.
+	@Override
+	public double getValue() {
+		double reward = 0;
+		int visits = 0;
+		for (SearchNode root : roots) {
+			reward += root.getTotalReward();
+			visits += root.getVisits();
+		}
+		return reward / visits;
+	}
+
+	// Total visits of the roots, i.e. search iterations plus one per tree.
+	@Override
+	public int getVisits() {
+		int visits = 0;
+		for (SearchNode root : roots) {
+			visits += root.getVisits();
+		}
+		return visits;
+	}
+
+	// Searches continuing from where the cycle actually went after an
+	// action. Trees that never opened that outcome start afresh there.
+	@Override
+	public RootParallelSearch advance(Action action, GridCell observed,
+			int turnNo) {
+		SearchNode[] next = new SearchNode[roots.length];
+		for (int i = 0; i < roots.length; i++) {
+			SearchNode child = roots[i].findChild(action, observed);
+			if (child == null || child.getTurnNo() != turnNo) {
+				SearchNode r = roots[i];
+				child = new SearchNode(observed, r.getCycle(), r.getTrack(),
+						r.getDistractorMatrix(), r.getRandom(), turnNo);
+			}
+			next[i] = child;
+		}
+		return new RootParallelSearch(next);
+	}
+
+	@Override
+	public GridCell getCell() {
+		return roots[0].getCell();
+	}
+
+	@Override
+	public int getNumThreads() {
+		return roots.length;
+	}
+}
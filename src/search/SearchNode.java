@@ -1,22 +1,28 @@
 package search;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import problem.Cycle;
-import problem.Cycle.Speed;
-import problem.Direction;
 import problem.GridCell;
 import problem.Action;
+import problem.SplitRandom;
 import problem.Track;
+import problem.TrackIndex;
+import problem.TransitionTable;
 
 public class SearchNode {
+	// Moves tried from every node, fastest first.
+	static final Action[] MOVES = { Action.FF, Action.FM, Action.FS,
+		Action.NE, Action.SE };
+
 	private GridCell cell; // The cell this node represents.
 	private Cycle cycle; // The cycle being used for the search.
-	private Map<Action, SearchNode> children; // Map of actions to child nodes.
+	private Map<Action, ChanceNode> children; // Map of actions to chance nodes.
 	private Map<Action, Integer> actionVisits; // Times action taken.
 	private int visits; // Number of times this node is visited.
 	private double totReward; // Total reward from rollouts. Divide by visits.
@@ -25,23 +31,60 @@ public class SearchNode {
 	private double[][] distractorMatrix; // The distractorMatrix for this track.
 	private double bias; //The bias to use in UCT calculations
 	private Random rng; //random number generator
+	private int turnNo; // Race turn this node is reached on.
+	private TrackIndex index; // Turns and damage to goal, for pruning.
+	private TransitionTable table; // Compiled moves of the cycle.
+	private OpponentForecast forecast; // Risk of an opponent winning first.
 
 	public SearchNode(GridCell cell, Cycle cycle, Track track,
 			double[][] distractorMatrix) {
+		this(cell, cycle, track, distractorMatrix, new SplitRandom());
+	}
+
+	// The whole tree, and every rollout from it, draws from rng.
+	public SearchNode(GridCell cell, Cycle cycle, Track track,
+			double[][] distractorMatrix, Random rng) {
+		this(cell, cycle, track, distractorMatrix, rng, 0);
+	}
+
+	// A node reached on a given turn of the race, so that states which can
+	// no longer finish before the turn limit are pruned.
+	public SearchNode(GridCell cell, Cycle cycle, Track track,
+			double[][] distractorMatrix, Random rng, int turnNo) {
+		this(cell, cycle, track, distractorMatrix, rng, turnNo,
+				track.getIndex(), track.getTransitionTable(cycle),
+				OpponentForecast.forTrack(track));
+	}
+
+	// A node one turn below a parent, sharing everything the parent looked
+	// up so that growing a tree takes no locks.
+	SearchNode(SearchNode parent, GridCell cell) {
+		this(cell, parent.cycle, parent.track, parent.distractorMatrix,
+				parent.rng, parent.turnNo + 1, parent.index, parent.table,
+				parent.forecast);
+	}
+
+	private SearchNode(GridCell cell, Cycle cycle, Track track,
+			double[][] distractorMatrix, Random rng, int turnNo,
+			TrackIndex index, TransitionTable table,
+			OpponentForecast forecast) {
 		this.cell = cell;
 		this.cycle = cycle;
 		this.track = track;
 		this.distractorMatrix = distractorMatrix;
-		//System.out.println(distractorMatrix);
 		
 		totReward = 0;
 		visits = 1;
 		isGoal = track.getCellType(cell) == Track.CellType.GOAL;
-		children = new HashMap<Action, SearchNode>();
+		children = new HashMap<Action, ChanceNode>();
 		actionVisits = new HashMap<Action, Integer>();
 		
 		bias = track.getPrize() * 0.6;
-		rng = new Random();
+		this.rng = rng;
+		this.turnNo = turnNo;
+		this.index = index;
+		this.table = table;
+		this.forecast = forecast;
 	}
 
 	public GridCell getCell() {
@@ -60,61 +103,65 @@ public class SearchNode {
 		return distractorMatrix;
 	}
 
-	// Fill this node's children mapping with all possible actions from the
-	// node.
-	public void expand() {
-		// Use the track to work out child nodes for actions.
-		GridCell shiftedNE = cell.shifted(Direction.NE);
-		// If there's not an obstacle or we're using a wild cycle.
-		// Wild cycles may pass through obstacles for minor damage.
-		if (!(track.getCellType(shiftedNE) == (Track.CellType.OBSTACLE))
-				|| cycle.isWild()) {
-			// Add it to the children.
-			children.put(Action.NE, new SearchNode(shiftedNE, cycle, track,
-					distractorMatrix));
-			actionVisits.put(Action.NE, 1);
-		}
+	public Random getRandom() {
+		return rng;
+	}
 
-		GridCell shiftedSE = cell.shifted(Direction.SE);
-		if (!(track.getCellType(shiftedSE) == (Track.CellType.OBSTACLE))
-				|| cycle.isWild()) {
-			children.put(Action.SE, new SearchNode(shiftedSE, cycle, track,
-					distractorMatrix));
-			actionVisits.put(Action.SE, 1);
-		}
+	public int getTurnNo() {
+		return turnNo;
+	}
+
+	public TrackIndex getIndex() {
+		return index;
+	}
+
+	public TransitionTable getTransitionTable() {
+		return table;
+	}
+
+	public OpponentForecast getForecast() {
+		return forecast;
+	}
 
-		// Nested if for moving forwards - if obstacle in the way and not wild,
-		// no action
-		GridCell shiftedE = cell.shifted(Direction.E);
-		if (!(track.getCellType(shiftedE) == (Track.CellType.OBSTACLE))
-				|| cycle.isWild()) {
-			children.put(Action.FS, new SearchNode(shiftedE, cycle, track,
-					distractorMatrix));
-			actionVisits.put(Action.FS, 1);
-
-			// If cycle is medium or fast speed try shifting again
-			shiftedE = shiftedE.shifted(Direction.E);
-			if (cycle.getSpeed() == Speed.MEDIUM
-					|| cycle.getSpeed() == Speed.FAST) {
-				if (!(track.getCellType(shiftedE) == (Track.CellType.OBSTACLE))
-						|| cycle.isWild()) {
-					children.put(Action.FM, new SearchNode(shiftedE, cycle,
-							track, distractorMatrix));
-					actionVisits.put(Action.FM, 1);
-
-					// If cycle is fast try shifting again
-					shiftedE = shiftedE.shifted(Direction.E);
-					if (cycle.getSpeed() == Speed.FAST) {
-						if (!(track.getCellType(shiftedE) == (Track.CellType.OBSTACLE))
-								|| cycle.isWild()) {
-							children.put(Action.FF, new SearchNode(shiftedE,
-									cycle, track, distractorMatrix));
-							actionVisits.put(Action.FF, 1);
-						}
-					}
-				}
+	public int getVisits() {
+		return visits;
+	}
+
+	public double getTotalReward() {
+		return totReward;
+	}
+
+	// Actions expanded from this node.
+	public Set<Action> getActions() {
+		return children.keySet();
+	}
+
+	public ChanceNode getChanceNode(Action action) {
+		return children.get(action);
+	}
+
+	// Add the chance node of an action, unless none of its outcomes can
+	// reach the goal in time, or another action has the same effect.
+	private void addChild(Action action) {
+		ChanceNode c = new ChanceNode(this, action);
+		for (ChanceNode other : children.values()) {
+			if (other.getEffectiveAction() == c.getEffectiveAction()) {
+				return;
 			}
 		}
+		if (c.canFinish()) {
+			children.put(action, c);
+			actionVisits.put(action, 1);
+		}
+	}
+
+	// Fill this node's children mapping with all possible actions from the
+	// node. Each action leads to a chance node over its real outcomes, so
+	// blocked moves are kept and cost what they really cost.
+	public void expand() {
+		for (Action a : MOVES) {
+			addChild(a);
+		}
 	}
 
 	public void loopSearch(long time) {
@@ -126,24 +173,33 @@ public class SearchNode {
 	}
 
 	public void search() {
-		// Track the visited nodes for backing up rollouts.
-		List<SearchNode> visited = new LinkedList<SearchNode>();
+		// Track the visited nodes for backing up rollouts, and the expected
+		// damage of each step between them.
+		List<SearchNode> visited = new ArrayList<SearchNode>();
+		List<ChanceNode> chances = new ArrayList<ChanceNode>();
+		List<Double> costs = new ArrayList<Double>();
 		SearchNode cur = this; // Current node
 		visited.add(this);
-		// Search down to find a leaf node, always selecting the 'best'.
-		// The 'best' is given by the exploration vs. exploitation algorithm
-		// select().
+		// Search down to find a leaf node, always selecting the 'best'
+		// action by select() and sampling its outcome.
 		while (!cur.isLeaf()) {
-			cur = cur.select();
-			// System.out.println("Adding: " + cur);
+			ChanceNode chance = cur.select();
+			cur = chance.sample();
+			chances.add(chance);
+			costs.add(chance.getCost(cur.cell));
 			visited.add(cur);
 		}
 
 		double value;
 		// Check if cur is the goal
 		if (cur.isGoal) {
-			// Set reward to the track prize
-			value = track.getPrize();
+			// Set reward to the track prize, unless an opponent got there
+			// on an earlier turn
+			value = track.getPrize()
+					* (1 - forecast.getLossProbability(cur.turnNo - 1));
+		} else if (!index.canFinish(cycle, cur.cell, cur.turnNo)) {
+			// Too far from the goal to finish in time
+			value = -track.getPrize();
 		} else {
 			// Otherwise expand the leaf node
 			cur.expand();
@@ -152,55 +208,55 @@ public class SearchNode {
 				// Set value to -prize as we can't win from here
 				value = -track.getPrize();
 			} else {
-				// Select the best node
-				SearchNode newNode = cur.select();
-				// Add to visited and rollout from it.
-				visited.add(newNode);
-				// Instantiate a TrackRollout with the node.
+				// Select the best action and sample where it leads
+				ChanceNode chance = cur.select();
+				SearchNode newNode = chance.sample();
+				// Rollout from the new node, then add the step to the path.
 				TrackRollout tr = new TrackRollout(newNode);
-				// Returns the estimated through simulation value of this node.
 				value = tr.rollout();
+				newNode.updateStats(value);
+				value -= chance.getCost(newNode.cell);
+				chance.updateStats(value);
 			}
 		}
-		// back the value up the tree
-		for (SearchNode node : visited) {
-			node.updateStats(value);
+		// back the value up the tree, charging each step's damage to the
+		// nodes above it
+		for (int i = visited.size() - 1; i >= 0; i--) {
+			visited.get(i).updateStats(value);
+			if (i > 0) {
+				value -= costs.get(i - 1);
+				chances.get(i - 1).updateStats(value);
+			}
 		}
 	}
 
-	private SearchNode select() {
+	private ChanceNode select() {
 		Action selected = null;
 		
 		//Set the starting value to compare to negative infinity
 		double bestValue = -Double.MAX_VALUE;
 
-		System.out.println("children.keyset = " + children.keySet());
 		// Go over all the possible actions and pick the best one
 		for (Action a : children.keySet()) {
-			SearchNode c = children.get(a);
+			ChanceNode c = children.get(a);
 			// avg total discounted value of runs starting from here
 			// plus sqrt of nat log(times visited) / times action taken
 			
-			//System.out.println("c.getvalue(): " + c.getValue());
-			//System.out.println("BALANCING_FACTOR: " + BALANCING_FACTOR);
-			//System.out.println("Math.log(c.visits): " + Math.log(c.visits));
-			//System.out.println("Actionvisits.get(a): " + actionVisits.get(a));
-			
-			//UCT plus a small random number to resolve ties
+			//UCT plus a small random number to resolve ties, plus a
+			//progressive bias towards low damage that fades with visits.
+			//The log term counts this node's visits, as UCT does; the
+			//children are chance nodes now, so there is no child node
+			//whose visits could stand in for them
 			double uctValue = c.getValue()
-					+ (bias * Math.sqrt(Math.log(c.visits)
-							/ (actionVisits.get(a)))) + rng.nextDouble();
-			System.out.println("UCT value for " + a + ": " + uctValue);
-			System.out.println("Current best: " + bestValue);
+					+ (bias * Math.sqrt(Math.log(visits)
+							/ (actionVisits.get(a)))) + rng.nextDouble()
+					+ c.getHeuristic() / actionVisits.get(a);
 			if (uctValue > bestValue) {
 				selected = a;
 				bestValue = uctValue;
-				System.out.println("New selected action: " + selected);
 			}
 		}
 		// Increment the action visits
-		System.out.println("old action visits for " + selected + ": "
-				+ actionVisits.get(selected));
 		actionVisits.put(selected, actionVisits.get(selected) + 1);
 
 		return children.get(selected);
@@ -219,6 +275,27 @@ public class SearchNode {
 		return totReward / visits;
 	}
 
+	// Returns the node for the cell the cycle actually moved to after an
+	// action, to be searched further as the next root, or null if that
+	// outcome was never opened.
+	public SearchNode findChild(Action action, GridCell observed) {
+		ChanceNode c = children.get(action);
+		return c == null ? null : c.getChild(observed);
+	}
+
+	// As above when the action is not known. The most visited node wins if
+	// several actions lead to the cell.
+	public SearchNode findChild(GridCell observed) {
+		SearchNode found = null;
+		for (ChanceNode c : children.values()) {
+			SearchNode n = c.getChild(observed);
+			if (n != null && (found == null || n.visits > found.visits)) {
+				found = n;
+			}
+		}
+		return found;
+	}
+
 	public Action bestAction() {
 		Action best = null;
 		double bestUtility = -Double.MAX_VALUE;
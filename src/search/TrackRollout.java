@@ -9,6 +9,7 @@ import problem.Cycle.Speed;
 import problem.Direction;
 import problem.GridCell;
 import problem.Track;
+import problem.TrackIndex;
 import problem.RaceSimTools;
 import problem.Track.CellType;
 
@@ -16,9 +17,6 @@ import problem.Track.CellType;
 
 public class TrackRollout {
 	// Global Fields
-	// Discount factor, a decreasing amount to multiply the reward by at each
-	// step.
-	static private Double DISCOUNT_FACTOR = 1.0;
 	// Rate at which the discount factor reduces thereby lowering the reward.
 	static final private Double DISCOUNT_RATE = 1.0;
 	// The multiplier on the cycles maximum range per step to look ahead for
@@ -42,6 +40,9 @@ public class TrackRollout {
 	private GridCell currentCell;
 	// Total reward accrued so far.
 	private Double totalDiscountedReward;
+	// Discount factor, a decreasing amount to multiply the reward by at each
+	// step. Per rollout, as rollouts run on several threads at once.
+	private double discountFactor = 1.0;
 	// Distractor Matrix for lookup, corresponds with cell row and column,
 	// contains distractor probability.
 	// double arrays are automatically filled with 0.0 on creation.
@@ -52,13 +53,35 @@ public class TrackRollout {
 	Cycle c;
 	// CycleType
 	CycleType cType;
+	// Random generator, shared with the search tree.
+	private Random rgen;
+	// Race turn the rollout starts on.
+	private int turnNo;
+	// Turns to goal, to cut off rollouts that can no longer finish.
+	private TrackIndex index;
+	// Risk of an opponent reaching the goal first, which lowers the prize.
+	private OpponentForecast forecast;
+	// Race turn the current cell is reached on.
+	private int cellTurn;
 
 	// Constructor
 	public TrackRollout(SearchNode startNode) {
+		this(startNode.getCell(), startNode.getCycle(), startNode.getTrack(),
+				startNode.getDistractorMatrix(), startNode.getRandom(),
+				startNode.getTurnNo(), startNode.getIndex(),
+				startNode.getForecast());
+	}
+
+	// A rollout from a cell reached on a given turn, drawing from rgen. Used
+	// by searches whose nodes are shared between threads, which each keep
+	// their own random generator.
+	public TrackRollout(GridCell startCell, Cycle cycle, Track track,
+			double[][] distractorMatrix, Random rgen, int turnNo,
+			TrackIndex index, OpponentForecast forecast) {
 		// Get the track.
-		t = startNode.getTrack();
+		t = track;
 		// Get the cycle.
-		c = startNode.getCycle();
+		c = cycle;
 		// Set the cycle type.
 		if (c.isWild() && c.isReliable()) {
 			cType = CycleType.WILD_RELIABLE;
@@ -69,22 +92,31 @@ public class TrackRollout {
 		} else {
 			cType = CycleType.NEITHER;
 		}
-		this.distractorMatrix = startNode.getDistractorMatrix();
-		this.currentCell = startNode.getCell();
+		this.distractorMatrix = distractorMatrix;
+		this.rgen = rgen;
+		this.currentCell = startCell;
+		this.turnNo = turnNo;
+		this.index = index;
+		this.forecast = forecast;
+		this.cellTurn = turnNo;
 
 		// Initialise the summation to the starting cell's reward.
-		this.totalDiscountedReward = DISCOUNT_FACTOR
-				* reward(startNode.getCell());
-		System.out.println("Rollout constructor - matrix: " + distractorMatrix);
+		this.totalDiscountedReward = discountFactor * reward(startCell,
+				cellTurn);
 	}
 
 	// Methods
 	// This method will begin the simulation run given a starting node and
 	// return the simulated value for this path.
 	public double rollout() {
-		for (int n = 0; n < t.getNumCols() * 2; n++) {
-			// Random generator.
-			Random rgen = new Random();
+		for (int n = 0; n < t.getNumCols() * 2
+				&& turnNo + n <= index.getLastTurn(); n++) {
+			cellTurn = turnNo + n;
+			// Stop once the race is won or can no longer be won in time.
+			if (t.getCellType(currentCell) == CellType.GOAL
+					|| !index.canFinish(c, currentCell, turnNo + n)) {
+				break;
+			}
 			// get the cycle's speed.
 			Speed cSpeed = c.getSpeed();
 			// Initialise
@@ -94,10 +126,13 @@ public class TrackRollout {
 			switch (cSpeed) {
 			case SLOW:
 				lookRange = LOOK_FACTOR * 1;
+				break;
 			case MEDIUM:
 				lookRange = LOOK_FACTOR * 2;
+				break;
 			case FAST:
 				lookRange = LOOK_FACTOR * 3;
+				break;
 			default:
 				lookRange = LOOK_FACTOR * 1;
 			}
@@ -108,18 +143,17 @@ public class TrackRollout {
 			// Ignore Obstacles, avoid Distractors
 			case WILD:
 				GridCell wCell = currentCell;
-				for (int i = 0; i < lookRange; i++) {
+				for (int i = 0; i < lookRange && t.withinBorder(wCell); i++) {
 					aheadList.add(wCell);
 					// Always looking ahead.
-					wCell = wCell.shifted(Direction.E);
+					wCell = t.getNeighbour(wCell, Direction.E);
 				}
 				Boolean wEvasiveAction = false;
 				for (int i = 0; i < aheadList.size(); i++) {
 					GridCell aheadCell = aheadList.get(i);
 					int aheadCellRow = aheadCell.getRow();
 					int aheadCellCol = aheadCell.getCol();
-					if (t.withinBorder(aheadCell)
-							&& distractorMatrix[aheadCellRow][aheadCellCol] > 0.0) {
+					if (distractorMatrix[aheadCellRow][aheadCellCol] > 0.0) {
 						wEvasiveAction = true;
 					}
 				}
@@ -134,24 +168,16 @@ public class TrackRollout {
 						step(Action.SE);
 					}
 				} else {
-					switch (cSpeed) {
-					case SLOW:
-						step(Action.FS);
-					case MEDIUM:
-						step(Action.FM);
-					case FAST:
-						step(Action.FF);
-					default:
-						step(Action.FS);
-					}
+					step(forward(cSpeed));
 				}
+				break;
 				// Ignore Distractors, avoid Obstacles
 			case RELIABLE:
 				GridCell rCell = currentCell;
-				for (int i = 0; i < lookRange; i++) {
+				for (int i = 0; i < lookRange && t.withinBorder(rCell); i++) {
 					aheadList.add(rCell);
 					// Always looking ahead.
-					rCell = rCell.shifted(Direction.E);
+					rCell = t.getNeighbour(rCell, Direction.E);
 				}
 				Boolean rEvasiveAction = false;
 				for (int i = 0; i < aheadList.size(); i++) {
@@ -171,38 +197,20 @@ public class TrackRollout {
 						step(Action.SE);
 					}
 				} else {
-					switch (cSpeed) {
-					case SLOW:
-						step(Action.FS);
-					case MEDIUM:
-						step(Action.FM);
-					case FAST:
-						step(Action.FF);
-					default:
-						step(Action.FS);
-					}
+					step(forward(cSpeed));
 				}
+				break;
 				// Ignore Obstacles and Distractors
 			case WILD_RELIABLE:
-				switch (cSpeed) {
-				case SLOW:
-					step(Action.FS);
-				case MEDIUM:
-					step(Action.FM);
-				case FAST:
-					step(Action.FF);
-				default:
-					step(Action.FS);
-				}
+				step(forward(cSpeed));
+				break;
 				// Avoid Obstacles and Distractors
 			default:
 				GridCell cell = currentCell;
-				for (int i = 0; i < lookRange; i++) {
+				for (int i = 0; i < lookRange && t.withinBorder(cell); i++) {
 					aheadList.add(cell);
 					// Always looking ahead.
-					System.out.println("Cell: " + cell);
-					cell = cell.shifted(Direction.E);
-					System.out.println("Shifted cell: " + cell);
+					cell = t.getNeighbour(cell, Direction.E);
 				}
 				Boolean evasiveAction = false;
 				for (int i = 0; i < aheadList.size(); i++) {
@@ -225,21 +233,11 @@ public class TrackRollout {
 						step(Action.SE);
 					}
 				} else {
-					switch (cSpeed) {
-					case SLOW:
-						step(Action.FS);
-					case MEDIUM:
-						step(Action.FM);
-					case FAST:
-						step(Action.FF);
-					default:
-						step(Action.FS);
-					}
+					step(forward(cSpeed));
 				}
 
 			}
 		}
-		System.out.println(totalDiscountedReward);
 		return totalDiscountedReward;
 	}
 
@@ -258,7 +256,7 @@ public class TrackRollout {
 			}
 		case FS:
 			// Get the cell to the East.
-			GridCell fsShiftedE = currentCell.shifted(Direction.E);
+			GridCell fsShiftedE = t.getNeighbour(currentCell, Direction.E);
 			// Check for obstacles.
 			Boolean fsObstacleE = t.getCellType(fsShiftedE) == CellType.OBSTACLE;
 			// If the cell isn't an obstacle cell or the cycle is Wild.
@@ -273,9 +271,9 @@ public class TrackRollout {
 			}
 		case FM:
 			// Get the cell to the East.
-			GridCell fmShiftedE = currentCell.shifted(Direction.E);
+			GridCell fmShiftedE = t.getNeighbour(currentCell, Direction.E);
 			// Get the cell two to the East.
-			GridCell fmShifted2E = fmShiftedE.shifted(Direction.E);
+			GridCell fmShifted2E = t.getNeighbour(fmShiftedE, Direction.E);
 			// Check for obstacles.
 			Boolean fmObstacleE = t.getCellType(fmShiftedE) == CellType.OBSTACLE;
 			Boolean fmObstacle2E = t.getCellType(fmShifted2E) == CellType.OBSTACLE;
@@ -292,11 +290,11 @@ public class TrackRollout {
 			}
 		case FF:
 			// Get the cell to the East.
-			GridCell ffShiftedE = currentCell.shifted(Direction.E);
+			GridCell ffShiftedE = t.getNeighbour(currentCell, Direction.E);
 			// Get the cell two to the East.
-			GridCell ffShifted2E = ffShiftedE.shifted(Direction.E);
+			GridCell ffShifted2E = t.getNeighbour(ffShiftedE, Direction.E);
 			// Get the cell three to the East.
-			GridCell ffShifted3E = ffShifted2E.shifted(Direction.E);
+			GridCell ffShifted3E = t.getNeighbour(ffShifted2E, Direction.E);
 			// Check for obstacles.
 			Boolean ffObstacleE = t.getCellType(ffShiftedE) == CellType.OBSTACLE;
 			Boolean ffObstacle2E = t.getCellType(ffShifted2E) == CellType.OBSTACLE;
@@ -315,11 +313,11 @@ public class TrackRollout {
 			}
 		case NE:
 			// Get the cell to the East.
-			GridCell neShiftedE = currentCell.shifted(Direction.E);
+			GridCell neShiftedE = t.getNeighbour(currentCell, Direction.E);
 			// Get the cell to the North.
-			GridCell shiftedN = currentCell.shifted(Direction.N);
+			GridCell shiftedN = t.getNeighbour(currentCell, Direction.N);
 			// Get the cell to the North East.
-			GridCell shiftedNE = currentCell.shifted(Direction.NE);
+			GridCell shiftedNE = t.getNeighbour(currentCell, Direction.NE);
 			// Check for obstacles.
 			Boolean neObstacleE = t.getCellType(neShiftedE) == CellType.OBSTACLE;
 			Boolean obstacleN = t.getCellType(shiftedN) == CellType.OBSTACLE;
@@ -338,16 +336,15 @@ public class TrackRollout {
 				}
 			} else if (sPrime.equals(currentCell)) {
 				return 0.1;
-			} else {
-				return 0.0;
 			}
+			return 0.0;
 		case SE:
 			// Get the cell to the East.
-			GridCell seShiftedE = currentCell.shifted(Direction.E);
+			GridCell seShiftedE = t.getNeighbour(currentCell, Direction.E);
 			// Get the cell to the South.
-			GridCell shiftedS = currentCell.shifted(Direction.S);
+			GridCell shiftedS = t.getNeighbour(currentCell, Direction.S);
 			// Get the cell to the South East.
-			GridCell shiftedSE = currentCell.shifted(Direction.SE);
+			GridCell shiftedSE = t.getNeighbour(currentCell, Direction.SE);
 			// Check for obstacles.
 			Boolean seObstacleE = t.getCellType(seShiftedE) == CellType.OBSTACLE;
 			Boolean obstacleS = t.getCellType(shiftedS) == CellType.OBSTACLE;
@@ -365,15 +362,27 @@ public class TrackRollout {
 					return 0.1;
 				}
 			}
+			return 0.0;
 		default:
 			return 0.0;
 		}
 	}
 
+	// The forward move of the cycle's speed, slowed down near the goal so
+	// that it ends on the goal column rather than off the track.
+	private Action forward(Speed speed) {
+		int colsLeft = t.getNumCols() - 1 - currentCell.getCol();
+		if (speed == Speed.FAST && colsLeft >= 3) {
+			return Action.FF;
+		} else if (speed != Speed.SLOW && colsLeft >= 2) {
+			return Action.FM;
+		}
+		return Action.FS;
+	}
+
 	// If given a valid action that would move the cycle within the bounds of
 	// the track moves the cycle and returns true else returns false.
 	private boolean step(Action a) {
-		Random rgen = new Random();
 		double randomValue = rgen.nextDouble();
 		Boolean validAction;
 		GridCell cell = currentCell;
@@ -381,84 +390,94 @@ public class TrackRollout {
 		case ST:
 			validAction = RaceSimTools.withinBounds(currentCell, t);
 			// No movement necessary.
+			break;
 		case FS:
 			validAction = RaceSimTools.withinBounds(
-					currentCell.shifted(Direction.E), t);
+					t.getNeighbour(currentCell, Direction.E), t);
 			// Set new cell East.
-			cell = currentCell.shifted(Direction.E);
+			cell = t.getNeighbour(currentCell, Direction.E);
+			break;
 		case FM:
-			validAction = RaceSimTools.withinBounds(
-					(currentCell.shifted(Direction.E)).shifted(Direction.E), t);
+			validAction = RaceSimTools.withinBounds(t.getNeighbour(
+					t.getNeighbour(currentCell, Direction.E), Direction.E), t);
 			// Set new cell two East.
-			cell = (currentCell.shifted(Direction.E)).shifted(Direction.E);
+			cell = t.getNeighbour(t.getNeighbour(currentCell, Direction.E),
+					Direction.E);
+			break;
 		case FF:
-			validAction = RaceSimTools.withinBounds(((currentCell
-					.shifted(Direction.E)).shifted(Direction.E))
-					.shifted(Direction.E), t);
-			cell = ((currentCell.shifted(Direction.E)).shifted(Direction.E))
-					.shifted(Direction.E);
+			validAction = RaceSimTools.withinBounds(t.getNeighbour(
+					t.getNeighbour(t.getNeighbour(currentCell, Direction.E),
+							Direction.E), Direction.E), t);
+			cell = t.getNeighbour(t.getNeighbour(t.getNeighbour(currentCell,
+					Direction.E), Direction.E), Direction.E);
+			break;
 		case NE:
 			validAction = RaceSimTools.withinBounds(
-					(currentCell.shifted(Direction.NE)), t);
+					t.getNeighbour(currentCell, Direction.NE), t);
 			// NE action has chance for number of probabilities to occur.
 			double neProbabilityN = transition(
-					currentCell.shifted(Direction.N), Action.NE);
+					t.getNeighbour(currentCell, Direction.N), Action.NE);
 			double neProbabilityE = transition(
-					currentCell.shifted(Direction.E), Action.NE);
+					t.getNeighbour(currentCell, Direction.E), Action.NE);
 			double neProbabilityST = transition(currentCell, Action.NE);
 			double neProbabilityNE = transition(
-					currentCell.shifted(Direction.NE), Action.NE);
+					t.getNeighbour(currentCell, Direction.NE), Action.NE);
 			if (randomValue >= 0.0 && randomValue <= neProbabilityN) {
-				cell = currentCell.shifted(Direction.N);
+				cell = t.getNeighbour(currentCell, Direction.N);
 			} else if (randomValue > neProbabilityN
 					&& randomValue <= (neProbabilityN + neProbabilityE)) {
-				cell = currentCell.shifted(Direction.E);
+				cell = t.getNeighbour(currentCell, Direction.E);
 			} else if (randomValue > (neProbabilityN + neProbabilityE)
 					&& randomValue <= (neProbabilityN + neProbabilityE + neProbabilityST)) {
 				cell = currentCell;
 			} else if (randomValue > (neProbabilityN + neProbabilityE + neProbabilityST)
 					&& randomValue <= (neProbabilityN + neProbabilityE
 							+ neProbabilityST + neProbabilityNE)) {
-				cell = currentCell.shifted(Direction.NE);
+				cell = t.getNeighbour(currentCell, Direction.NE);
 			}
+			break;
 		case SE:
 			validAction = RaceSimTools.withinBounds(
-					(currentCell.shifted(Direction.SE)), t);
-			// NE action has chance for number of probabilities to occur.
+					t.getNeighbour(currentCell, Direction.SE), t);
+			// SE action has chance for number of probabilities to occur.
 			double seProbabilityS = transition(
-					currentCell.shifted(Direction.S), Action.SE);
+					t.getNeighbour(currentCell, Direction.S), Action.SE);
 			double seProbabilityE = transition(
-					currentCell.shifted(Direction.E), Action.SE);
+					t.getNeighbour(currentCell, Direction.E), Action.SE);
 			double seProbabilityST = transition(currentCell, Action.SE);
 			double seProbabilitySE = transition(
-					currentCell.shifted(Direction.SE), Action.SE);
+					t.getNeighbour(currentCell, Direction.SE), Action.SE);
 			if (randomValue >= 0.0 && randomValue <= seProbabilityS) {
-				cell = currentCell.shifted(Direction.N);
+				cell = t.getNeighbour(currentCell, Direction.S);
 			} else if (randomValue > seProbabilityS
 					&& randomValue <= (seProbabilityS + seProbabilityE)) {
-				cell = currentCell.shifted(Direction.E);
+				cell = t.getNeighbour(currentCell, Direction.E);
 			} else if (randomValue > (seProbabilityS + seProbabilityE)
 					&& randomValue <= (seProbabilityS + seProbabilityE + seProbabilityST)) {
 				cell = currentCell;
 			} else if (randomValue > (seProbabilityS + seProbabilityE + seProbabilityST)
 					&& randomValue <= (seProbabilityS + seProbabilityE
 							+ seProbabilityST + seProbabilitySE)) {
-				cell = currentCell.shifted(Direction.NE);
+				cell = t.getNeighbour(currentCell, Direction.SE);
 			}
+			break;
 		case TO:
 			// How about no.
 			validAction = false;
+			break;
 		case TC:
 			// How about noooooo.
 			validAction = false;
+			break;
 		default:
 			validAction = false;
 		}
 		if (validAction) {
 			// Increase the amount rewards are discounted.
-			DISCOUNT_FACTOR *= DISCOUNT_RATE;
+			discountFactor *= DISCOUNT_RATE;
 			// Add the reward to the summation.
-			totalDiscountedReward += DISCOUNT_FACTOR * reward(cell);
+			totalDiscountedReward += discountFactor * reward(cell,
+					cellTurn + 1);
 			// Take the step
 			if (!currentCell.equals(cell)) {
 				currentCell = cell;
@@ -468,15 +487,16 @@ public class TrackRollout {
 		return false;
 	}
 
-	private Double reward(GridCell cell) {
+	// The reward of moving into a cell on a given turn.
+	private Double reward(GridCell cell, int turn) {
 		// Cell Attributes
 		int cellRow = cell.getRow();
 		int cellCol = cell.getCol();
 		// Determine reward of a given cell, take into account distractors and
 		// obstacles.
-		// GOAL
+		// GOAL, unless an opponent reached it on an earlier turn
 		if (t.getCellType(cell) == Track.CellType.GOAL) {
-			return t.getPrize();
+			return t.getPrize() * (1 - forecast.getLossProbability(turn - 1));
 		}
 		// OBSTACLE
 		if (t.getCellType(cell) == Track.CellType.OBSTACLE) {
@@ -0,0 +1,86 @@
+package search;
+
+import java.util.Map;
+
+import problem.Action;
+import problem.Cycle;
+import problem.GridCell;
+import problem.SplitRandom;
+import problem.Track;
+
+// Tree parallel MCTS: every thread searches the same ConcurrentSearchNode
+// tree, each with its own random stream. Threads share what they learn as
+// they go rather than only at the end, at the cost of contended counters
+// near the root, and virtual loss keeps them from all following one path.
+public class TreeParallelSearch implements ParallelSearch {
+	private ConcurrentSearchNode root; // The shared tree.
+	private SplitRandom[] rngs; // One random stream per thread.
+
+	public TreeParallelSearch(GridCell cell, Cycle cycle, Track track,
+			double[][] distractorMatrix, SplitRandom rng, int turnNo,
+			int numThreads) {
+		root = new ConcurrentSearchNode(cell, cycle, track, distractorMatrix,
+				turnNo);
+		rngs = new SplitRandom[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			rngs[i] = rng.split();
+		}
+	}
+
+	private TreeParallelSearch(ConcurrentSearchNode root, SplitRandom[] rngs) {
+		this.root = root;
+		this.rngs = rngs;
+	}
+
+	@Override
+	public void loopSearch(long time) {
+		root.loopSearch(time, rngs);
+	}
+
+	@Override
+	public Map<Action, Integer> getActionVisits() {
+		return root.getActionVisits();
+	}
+
+	@Override
+	public Action bestAction() {
+		return root.bestAction();
+	}
+
+	@Override
+	public double getValue() {
+		return root.getValue();
+	}
+
+	@Override
+	public int getVisits() {
+		return root.getVisits();
+	}
+
+	// Keeps the subtree of the observed outcome, or starts afresh there if
+	// it was never opened.
+	@Override
+	public TreeParallelSearch advance(Action action, GridCell observed,
+			int turnNo) {
+		ConcurrentSearchNode child = root.findChild(action, observed);
+		if (child == null || child.getTurnNo() != turnNo) {
+			child = new ConcurrentSearchNode(observed, root.getCycle(),
+					root.getTrack(), root.getDistractorMatrix(), turnNo);
+		}
+		return new TreeParallelSearch(child, rngs);
+	}
+
+	@Override
+	public GridCell getCell() {
+		return root.getCell();
+	}
+
+	@Override
+	public int getNumThreads() {
+		return rngs.length;
+	}
+
+	public ConcurrentSearchNode getRoot() {
+		return root;
+	}
+}
@@ -0,0 +1,174 @@
+package search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import problem.Cycle;
+import problem.Track;
+
+/**
+ * On-disk cache of solved FiniteHorizonSolver tables. A solution only
+ * depends on the track file and on the speed, wildness and reliability of
+ * the cycle, so it is stored in a file named after a SHA-256 hash of the
+ * track file's contents plus those capabilities, and reused by later runs.
+ *
+ * Files are memory-mapped and the solver reads its values and actions
+ * straight from the mapping, so a cached track costs no planning and no
+ * copying. A file holds a header, then the values of every (turn, state) as
+ * doubles, then the action ordinals as bytes, in native byte order.
+ *
+ * The directory is given by the planCache system property, plan-cache by
+ * default. Tracks not loaded from a file are never cached.
+ */
+public class ValueTableCache {
+
+	public static final String cacheProperty = "planCache";
+	public static final String defaultCacheDir = "plan-cache";
+
+	// Change whenever the model or the file layout changes.
+	private static final int VERSION = 1;
+	private static final int MAGIC = 0x46485654;
+	// Magic, version, number of states, horizon.
+	private static final int HEADER = 16;
+
+	/**
+	 * Maps the cached solution of a track and cycle
+	 * @param track
+	 * @param cycle
+	 * @return solver reading from the file, or null if there is none
+	 */
+	public static FiniteHorizonSolver load(Track track, Cycle cycle) {
+		File file = getFile(track, cycle);
+		if (file == null || !file.isFile()) {
+			return null;
+		}
+		FiniteHorizonSolver solver = new FiniteHorizonSolver(track, cycle);
+		long n = (long) (solver.getHorizon() + 1) * solver.getNumStates();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			MappedByteBuffer buffer;
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() != HEADER + n * 9) {
+					return null;
+				}
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			} finally {
+				raf.close();
+			}
+			buffer.order(ByteOrder.nativeOrder());
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+					|| buffer.getInt(8) != solver.getNumStates()
+					|| buffer.getInt(12) != solver.getHorizon()) {
+				return null;
+			}
+			solver.map(slice(buffer, HEADER).asDoubleBuffer(),
+					slice(buffer, HEADER + (int) n * 8));
+			return solver;
+		} catch (IOException e) {
+			System.out.println("ERROR: Could not read " + file + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the solution of a solved solver, unless it cannot be cached
+	 * @param solver
+	 */
+	public static void store(FiniteHorizonSolver solver) {
+		File file = getFile(solver.getTrack(), solver.getCycle());
+		double[] values = solver.getValues();
+		byte[] policy = solver.getPolicy();
+		if (file == null || values == null) {
+			return;
+		}
+		int n = (solver.getHorizon() + 1) * solver.getNumStates();
+		try {
+			file.getParentFile().mkdirs();
+
+			// Write to a temporary file first so no one maps half a table
+			File temp = File.createTempFile(file.getName(), ".tmp",
+					file.getParentFile());
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				long size = HEADER + (long) n * 9;
+				MappedByteBuffer buffer = raf.getChannel().map(
+						FileChannel.MapMode.READ_WRITE, 0, size);
+				buffer.order(ByteOrder.nativeOrder());
+				buffer.putInt(MAGIC).putInt(VERSION)
+						.putInt(solver.getNumStates())
+						.putInt(solver.getHorizon());
+				DoubleBuffer out = slice(buffer, HEADER).asDoubleBuffer();
+				out.put(values, 0, n);
+				slice(buffer, HEADER + n * 8).put(policy, 0, n);
+				buffer.force();
+			} finally {
+				raf.close();
+			}
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("ERROR: Could not write " + file + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the part of a buffer from an offset on, in native byte order
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(offset);
+		return b.slice().order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Returns the cache file of a track and cycle
+	 * @param track
+	 * @param cycle
+	 * @return file, or null if the track has no file to hash
+	 */
+	public static File getFile(Track track, Cycle cycle) {
+		if (track.getFileName() == null) {
+			return null;
+		}
+		String hash;
+		try {
+			hash = sha256(Files.readAllBytes(new File(track.getFileName())
+					.toPath()));
+		} catch (IOException e) {
+			return null;
+		}
+		String dir = System.getProperty(cacheProperty, defaultCacheDir);
+		return new File(dir, hash + "-" + cycle.getSpeed()
+				+ (cycle.isWild() ? "-wild" : "-domesticated")
+				+ (cycle.isReliable() ? "-reliable" : "-unreliable") + ".bin");
+	}
+
+	private static String sha256(byte[] data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest(data)) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
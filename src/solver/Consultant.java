@@ -5,14 +5,19 @@ import java.util.List;
 import java.util.Map;
 import problem.Action;
 import problem.Cycle;
-import problem.Distractor;
 import problem.GridCell;
 import problem.Player;
 import problem.RaceSimTools;
 import problem.RaceState;
+import problem.SplitRandom;
 import problem.Tour;
 import problem.Track;
-import search.SearchNode;
+import search.FiniteHorizonSolver;
+import search.LrtdpPlanner;
+import search.OpponentForecast;
+import search.ParallelSearch;
+import search.RootParallelSearch;
+import search.TreeParallelSearch;
 
 /**
  * Implement your solver here.
@@ -22,11 +27,38 @@ import search.SearchNode;
  */
 public class Consultant {
 
+	// How to pick actions in races with opponents
+	public enum Strategy { MCTS, LRTDP }
+
+	// System property naming the strategy, e.g. -Dstrategy=LRTDP
+	public static final String strategyProperty = "strategy";
+
+	// How MCTS uses several threads: a tree each, or one shared tree
+	public enum Parallelism { ROOT, TREE }
+
+	// System property naming the parallelism, e.g. -Dparallelism=TREE
+	public static final String parallelismProperty = "parallelism";
+
 	// The time to calculate a single step online in nanoseconds
 	private static long STEP_TIME = 1000000000;
 	// Badass name for our cycle
 	private static String BADASS_NAME = "Glorious Cycle of Ultimate Destiny";
 
+	private Strategy strategy;
+
+	public Consultant() {
+		this(Strategy.valueOf(System.getProperty(strategyProperty,
+				Strategy.MCTS.name()).toUpperCase()));
+	}
+
+	public Consultant(Strategy strategy) {
+		this.strategy = strategy;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
 	/**
 	 * Solves a tour. Replace existing code with your code.
 	 * 
@@ -97,26 +129,92 @@ public class Consultant {
 			tour.startRace(t, players);
 			System.out.println("Number of races: " + tour.getNumRaces());
 
+			// Forecast the opponents from where they actually are. Searches
+			// and planners on this track read the same forecast.
+			OpponentForecast forecast = OpponentForecast.forTrack(t);
+			forecast.observe(tour.getLatestRaceState());
+
+			// One planner per race, so its values carry over between turns
+			LrtdpPlanner planner = null;
+			if (strategy == Strategy.LRTDP) {
+				planner = new LrtdpPlanner(t, thisRace.getCycle(),
+						tour.splitRandom());
+			}
+
+			// Search trees, kept between turns
+			ParallelSearch root = null;
+
 			// Race - cue music
 			while (tour.getLatestRaceState().getStatus() == RaceState.Status.RACING) {
 				// Get the current state of the race
 				RaceState currentState = tour.getLatestRaceState();
 				Player us = currentState.getPlayers().get(0);
-				SearchNode root = new SearchNode(us.getPosition(),
-						us.getCycle(), t, distractorMatrix);
+				ArrayList<Action> actions = new ArrayList<Action>();
+
+				// Without opponents, follow the exact policy
+				if (t.getOpponents().isEmpty()) {
+					actions.add(FiniteHorizonSolver.forCycle(t, us.getCycle())
+							.getAction(currentState.getTurnNo(),
+									us.getPosition(), us.isObstacle()));
+					tour.stepTurn(actions);
+					forecast.observe(tour.getLatestRaceState());
+					continue;
+				}
+				if (planner != null) {
+					actions.add(planner.plan(currentState.getTurnNo(), us,
+							STEP_TIME));
+					tour.stepTurn(actions);
+					forecast.observe(tour.getLatestRaceState());
+					continue;
+				}
+				if (root == null) {
+					root = newSearch(us.getPosition(), us.getCycle(), t,
+							distractorMatrix, tour.splitRandom(),
+							currentState.getTurnNo());
+				}
 
 				// Decide what to do next
 				// Search
 				root.loopSearch(STEP_TIME);
 				// Select the best action and take a step
-				ArrayList<Action> actions = new ArrayList<Action>();
 				actions.add(root.bestAction());
 				tour.stepTurn(actions);
+				forecast.observe(tour.getLatestRaceState());
+
+				// Carry on from the subtree of where we actually ended up
+				RaceState nextState = tour.getLatestRaceState();
+				root = root.advance(actions.get(0), nextState.getPlayers()
+						.get(0).getPosition(), nextState.getTurnNo());
 			}
 		}
 
 	}
 
+	/**
+	 * Creates an MCTS search on the default number of threads, parallelised
+	 * as the parallelism property says, ROOT by default
+	 * @param cell
+	 * @param cycle
+	 * @param track
+	 * @param distractorMatrix
+	 * @param rng
+	 * @param turnNo
+	 * @return new search
+	 */
+	public static ParallelSearch newSearch(GridCell cell, Cycle cycle,
+			Track track, double[][] distractorMatrix, SplitRandom rng,
+			int turnNo) {
+		Parallelism parallelism = Parallelism.valueOf(System.getProperty(
+				parallelismProperty, Parallelism.ROOT.name()).toUpperCase());
+		int numThreads = RootParallelSearch.defaultThreads();
+		if (parallelism == Parallelism.TREE) {
+			return new TreeParallelSearch(cell, cycle, track,
+					distractorMatrix, rng, turnNo, numThreads);
+		}
+		return new RootParallelSearch(cell, cycle, track, distractorMatrix,
+				rng, turnNo, numThreads);
+	}
+
 	/**
 	 * Solves a tour. Replace existing code with your code.
 	 * 
@@ -188,27 +286,13 @@ public class Consultant {
 		}
 	}
 
-	// Creates a matrix of values representing the distractor probabilities for
+	// Returns a matrix of values representing the distractor probabilities for
 	// each cell
 	// non-zero probability means a distractor can occur in the cell.
+	// The matrix is built once per track and shared, so don't modify it.
 	public static double[][] buildDistractorMatrix(Track t) {
-		// Initialise the distractor matrix.
-		// Get the list of cells that have possible distractors.
-		List<Distractor> distractors = t.getDistractors();
-		// Store it as an Array.
-		ArrayList<Distractor> d = new ArrayList<Distractor>();
-		d.addAll(distractors);
-		// Build the distractor matrix.
-		double[][] distractorMatrix = new double[t.getNumRows()][t.getNumCols()];
-		// Load the matrix with the probabilities.
-		for (int i = 0; i < d.size(); i++) {
-			int dRow = d.get(i).getPosition().getRow();
-			int dCol = d.get(i).getPosition().getCol();
-			double dProbability = d.get(i).getAppearProbability();
-			distractorMatrix[dRow][dCol] = dProbability;
-		}
 		// Give him the blue pill.
-		return distractorMatrix;
+		return t.getIndex().getDistractorMatrix();
 	}
 
 }
@@ -10,6 +10,8 @@ public class Main {
 	static String defaultCycleFile = "testcases/example/cycle.txt";
 	static String defaultMetaTrackFile = "testcases/example/meta-track.txt";
 	static String defaultOutputFile = "result.txt";
+	/** Optional system property that fixes the tour's random seed */
+	static String seedProperty = "seed";
 
 	public static void main(String[] args) {
 		
@@ -30,7 +32,8 @@ public class Main {
 		
 		// Create and solve tour
 		Consultant consultant = new Consultant();
-		Tour tour = new Tour(setup);
+		Long seed = Long.getLong(seedProperty);
+		Tour tour = seed == null ? new Tour(setup) : new Tour(setup, seed);
 		consultant.solveTour(tour);
 		try {
 			tour.outputToFile(outputFile);
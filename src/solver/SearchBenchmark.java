@@ -0,0 +1,93 @@
+package solver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import problem.Cycle;
+import problem.GridCell;
+import problem.Setup;
+import problem.SplitRandom;
+import problem.Track;
+import search.ParallelSearch;
+import search.RootParallelSearch;
+import search.TreeParallelSearch;
+
+/**
+ * Measures MCTS throughput, in search iterations per second, of root and
+ * tree parallelism against the number of threads on every track of a setup,
+ * to choose the parallelism property for each track size. Thread counts
+ * double from 1 up to the number of cores.
+ */
+public class SearchBenchmark {
+
+	// Time searched per measurement in nanoseconds
+	private static final long RUN_TIME = 2000000000L;
+	// Time searched first so that the JIT has compiled the search
+	private static final long WARM_UP_TIME = 1000000000L;
+
+	public static void main(String[] args) {
+		String cycleFile = Main.defaultCycleFile;
+		String metaTrackFile = Main.defaultMetaTrackFile;
+		if (args.length != 0 && args.length != 2) {
+			System.out.println("Arguments: cycle-filename meta-track-filename");
+			System.exit(1);
+		} else if (args.length == 2) {
+			cycleFile = args[0].trim();
+			metaTrackFile = args[1].trim();
+		}
+		Setup setup = new Setup(cycleFile, metaTrackFile);
+		Cycle cycle = setup.getCycles().get(0);
+
+		List<Integer> threadCounts = new ArrayList<Integer>();
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int n = 1; n < cores; n *= 2) {
+			threadCounts.add(n);
+		}
+		threadCounts.add(cores);
+
+		System.out.println("Cycle: " + cycle.getName() + ", cores: " + cores);
+		System.out.println("track\tsize\tthreads\troot it/s\ttree it/s");
+		boolean warm = false;
+		for (Track track : setup.getTracks()) {
+			GridCell start = track.getStartingPositions().values().iterator()
+					.next();
+			double[][] distractorMatrix = Consultant
+					.buildDistractorMatrix(track);
+			if (!warm) {
+				measure(new TreeParallelSearch(start, cycle, track,
+						distractorMatrix, new SplitRandom(0), 0, 1),
+						WARM_UP_TIME);
+				measure(new RootParallelSearch(start, cycle, track,
+						distractorMatrix, new SplitRandom(0), 0, 1),
+						WARM_UP_TIME);
+				warm = true;
+			}
+			for (int n : threadCounts) {
+				double root = measure(new RootParallelSearch(start, cycle,
+						track, distractorMatrix, new SplitRandom(n), 0, n),
+						RUN_TIME);
+				double tree = measure(new TreeParallelSearch(start, cycle,
+						track, distractorMatrix, new SplitRandom(n), 0, n),
+						RUN_TIME);
+				System.out.printf("%s\t%dx%d\t%d\t%.0f\t%.0f%n",
+						track.getFileNameNoPath(), track.getNumRows(),
+						track.getNumCols(), n, root, tree);
+			}
+		}
+	}
+
+	/**
+	 * Searches for a time and returns the iterations per second
+	 * @param search
+	 * @param time in nanoseconds
+	 * @return iterations per second
+	 */
+	private static double measure(ParallelSearch search, long time) {
+		// Each tree's root starts with one visit
+		int before = search.getVisits();
+		long start = System.nanoTime();
+		search.loopSearch(time);
+		long elapsed = System.nanoTime() - start;
+		return (search.getVisits() - before) * 1e9 / elapsed;
+	}
+}
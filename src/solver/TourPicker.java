@@ -14,7 +14,10 @@ import problem.Player;
 import problem.Track;
 import problem.Cycle;
 import problem.Tour;
-import problem.Track.CellType;
+import problem.TrackIndex;
+import search.FiniteHorizonSolver;
+import search.OpponentForecast;
+import search.ParallelSearch;
 import search.SearchNode;
 import solver.Consultant;
 
@@ -69,9 +72,31 @@ public class TourPicker {
 				currentCycle = (Cycle) iterC.next();
 				//iterate over every start position for the cycle
 				for (GridCell pos : startingPositions.values()) {
-					SearchNode node = new SearchNode(pos, currentCycle,
-							currentTrack,
-							Consultant.buildDistractorMatrix(currentTrack));
+					// without opponents the race can be solved exactly
+					if (currentTrack.getOpponents().isEmpty()) {
+						FiniteHorizonSolver solver = FiniteHorizonSolver
+								.forCycle(currentTrack, currentCycle);
+						trackCycleArray[counter] = new EvaluatedTrack(currentTrack, currentCycle, solver.getValue(0, pos, false), pos);
+						counter++;
+						continue;
+					}
+					// skip the search if an opponent is sure to reach the
+					// goal before this cycle possibly can
+					int turns = currentTrack.getIndex().getTurnsToGoal(
+							currentCycle, pos);
+					if (turns == TrackIndex.UNREACHABLE || OpponentForecast
+							.forTrack(currentTrack).getLossProbability(
+									turns - 1) >= 1 - 1e-9) {
+						trackCycleArray[counter] = new EvaluatedTrack(
+								currentTrack, currentCycle,
+								-currentTrack.getPrize(), pos);
+						counter++;
+						continue;
+					}
+					ParallelSearch node = Consultant.newSearch(pos,
+							currentCycle, currentTrack,
+							Consultant.buildDistractorMatrix(currentTrack),
+							tour.splitRandom(), 0);
 
 					// Search
 					node.loopSearch(timeFactor);
@@ -239,19 +264,7 @@ public class TourPicker {
 	 * obstacles to cells
 	 */
 	public static double percentObs(Track track) {
-		double output = 0.0;
-		int obsCount = 0;
-		double cellCount = track.getNumRows() * track.getNumCols();
-		for (int j = 0; j < track.getNumRows(); j++) {
-			for (int k = 0; k < track.getNumCols(); k++) {
-				GridCell cell = new GridCell(j, k);
-				if (track.getCellType(cell).equals(CellType.OBSTACLE)) {
-					obsCount++;
-				}
-			}
-		}
-		output = obsCount / cellCount;
-		return output;
+		return track.getIndex().getObstacleDensity();
 	}
 
 	// finds how long we can allocate to do a MTCS on each start position
@@ -263,11 +276,17 @@ public class TourPicker {
 		long output = 0;
 		while (iterT.hasNext()) {
 			Track currentTrack = (Track) iterT.next();
-			startPosCount += currentTrack.getStartingPositions().size();
+			// tracks without opponents are solved exactly, not searched
+			if (!currentTrack.getOpponents().isEmpty()) {
+				startPosCount += currentTrack.getStartingPositions().size();
+			}
 		}
 		// 4 minutes
 		long timeLimit = 4 * 60 * SINGLE_SECOND;
 		jobs = startPosCount * numCycles;
+		if (jobs == 0) {
+			return timeLimit;
+		}
 		output = timeLimit / jobs;
 
 		return output;
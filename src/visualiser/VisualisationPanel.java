@@ -223,11 +223,10 @@ public class VisualisationPanel extends JComponent {
 		for (int col = 0; col < numCols; col++) {
 			for (int row = 0; row < numRows; row++) {
 
-				GridCell cell = new GridCell(row, col);
 				int x = (int) (((double) col / numCols) * drawWidth);
 				int y = (int) (((double) row / numRows) * drawHeight);
 
-				switch (track.getCellType(cell)) {
+				switch (track.getCellType(row, col)) {
 				case EMPTY:
 					break;
 				case OBSTACLE:
@@ -0,0 +1,203 @@
+package problem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks of the successor distributions of RaceSimTools. Run as a program
+ * from the project directory, so that the test tracks can be found; throws
+ * on the first failure.
+ */
+public class NextStatesCheck {
+
+	private static final String TRACKS = "testcases/example/";
+	private static final double TOLERANCE = 1e-9;
+	// Turns expanded when comparing marginal and full successors. The
+	// example tracks are short enough for an opponent to win in three.
+	private static final int TURNS = 3;
+
+	public static void main(String[] args) throws IOException {
+		checkMarginalSeveralTurns();
+		checkPrunedTies();
+		System.out.println("NextStatesCheck passed");
+	}
+
+	/**
+	 * Puts the opponent on every cell of some tracks, expands the state
+	 * several turns ahead with and without marginalising, and compares the
+	 * distribution of race status at the end. An opponent that cannot reach
+	 * the goal on the first turn must still move in marginal mode, or it
+	 * could never win on a later one.
+	 */
+	private static void checkMarginalSeveralTurns() throws IOException {
+		Setup setup = new Setup(TRACKS + "novice/cycle.txt",
+				TRACKS + "novice/meta-track.txt");
+		Random random = new Random(7);
+		int checked = 0;
+		int lost = 0;
+		for (String name : new String[] { "stLucia", "gatton" }) {
+			Track track = new Track(TRACKS + name + ".txt");
+			Opponent opponent = track.getOpponents().get(0);
+			for (int row = 0; row < track.getNumRows(); row++) {
+				for (int col = 0; col < track.getNumCols(); col++) {
+					if (track.getCellType(row, col) != Track.CellType.EMPTY) {
+						continue;
+					}
+					List<Opponent> opponents = new ArrayList<Opponent>();
+					opponents.add(new Opponent(opponent.getId(),
+							opponent.getPolicy(), track.getCell(row, col)));
+					Cycle cycle = setup.getCycles().get(random.nextInt(
+							setup.getCycles().size()));
+					RaceState state = new RaceState(startPlayers(track,
+							cycle), opponents, track.getDistractors());
+					List<Action> actions = Arrays.asList(Action.values()[
+							random.nextInt(Action.values().length)]);
+					Map<RaceState.Status, Double> full = statusAfter(state,
+							actions, track, false, TURNS);
+					Map<RaceState.Status, Double> marginal = statusAfter(
+							state, actions, track, true, TURNS);
+					for (RaceState.Status status : RaceState.Status.values()) {
+						double f = get(full, status);
+						double m = get(marginal, status);
+						if (Math.abs(f - m) > TOLERANCE) {
+							throw new AssertionError("On " + name
+									+ " with the opponent at " + row + " "
+									+ col + ", " + status + " after " + TURNS
+									+ " turns is " + m + " marginalised but "
+									+ f + " in full");
+						}
+					}
+					if (get(full, RaceState.Status.LOST) > 0) {
+						lost++;
+					}
+					checked++;
+				}
+			}
+		}
+		if (checked == 0 || lost == 0) {
+			throw new AssertionError("No opponent could win in time");
+		}
+	}
+
+	/**
+	 * Prunes the successors of a lone player on a track without distractors
+	 * or opponents to every smaller size. The distribution then has a single
+	 * factor, whose top k is exact, and NE and SE give many ties, such as
+	 * the three 0.1 outcomes beside the 0.7 one. Every kept outcome must be
+	 * at least as likely as every dropped one, whatever order ties come in,
+	 * and the dropped mass must be what was left out.
+	 */
+	private static void checkPrunedTies() throws IOException {
+		Setup setup = new Setup(TRACKS + "novice/cycle.txt",
+				TRACKS + "novice/meta-track.txt");
+		Track track = new Track(TRACKS + "novice/college.txt");
+		int checked = 0;
+		for (Cycle cycle : setup.getCycles()) {
+			for (int row = 0; row < track.getNumRows(); row++) {
+				for (int col = 0; col < track.getNumCols(); col++) {
+					if (track.getCellType(row, col) != Track.CellType.EMPTY) {
+						continue;
+					}
+					List<Player> players = new ArrayList<Player>();
+					players.add(new Player("A", cycle, track.getCell(row,
+							col)));
+					RaceState state = new RaceState(players,
+							new ArrayList<Opponent>(),
+							new ArrayList<Distractor>());
+					for (Action action : new Action[] { Action.NE,
+							Action.SE }) {
+						checked += checkPruned(state, Arrays.asList(action),
+								track);
+					}
+				}
+			}
+		}
+		if (checked == 0) {
+			throw new AssertionError("No ties checked");
+		}
+	}
+
+	/**
+	 * Checks every pruned size of one successor distribution, and returns
+	 * the number of sizes that cut through a tie
+	 */
+	private static int checkPruned(RaceState state, List<Action> actions,
+			Track track) {
+		Map<RaceState, Double> full = RaceSimTools.nextStates(state,
+				actions, track, false);
+		int ties = 0;
+		for (int k = 1; k < full.size(); k++) {
+			PrunedDistribution pruned = RaceSimTools.prunedNextStates(state,
+					actions, track, k, 0);
+			Map<RaceState, Double> kept = pruned.getProbabilities();
+			double keptMass = 0;
+			double leastKept = Double.MAX_VALUE;
+			double mostDropped = 0;
+			for (Map.Entry<RaceState, Double> e : full.entrySet()) {
+				if (kept.containsKey(e.getKey())) {
+					keptMass += e.getValue();
+					leastKept = Math.min(leastKept, e.getValue());
+				} else {
+					mostDropped = Math.max(mostDropped, e.getValue());
+				}
+			}
+			if (kept.size() != k || leastKept < mostDropped - TOLERANCE
+					|| Math.abs(pruned.getDroppedMass() - (1 - keptMass))
+					> TOLERANCE) {
+				throw new AssertionError("Pruning to " + k + " kept "
+						+ kept.values() + " of " + full.values()
+						+ " with dropped mass " + pruned.getDroppedMass());
+			}
+			if (Math.abs(leastKept - mostDropped) <= TOLERANCE) {
+				ties++;
+			}
+		}
+		return ties;
+	}
+
+	/**
+	 * Returns the distribution of the race status some turns after a state,
+	 * taking the same action on every turn
+	 */
+	private static Map<RaceState.Status, Double> statusAfter(RaceState state,
+			List<Action> actions, Track track, boolean marginalise,
+			int turns) {
+		Map<RaceState.Status, Double> result =
+				new HashMap<RaceState.Status, Double>();
+		if (turns == 0 || state.getStatus() != RaceState.Status.RACING) {
+			result.put(state.getStatus(), 1.0);
+			return result;
+		}
+		for (Map.Entry<RaceState, Double> next : RaceSimTools.nextStates(
+				state, actions, track, marginalise).entrySet()) {
+			for (Map.Entry<RaceState.Status, Double> e : statusAfter(
+					next.getKey(), actions, track, marginalise, turns - 1)
+					.entrySet()) {
+				add(result, e.getKey(), next.getValue() * e.getValue());
+			}
+		}
+		return result;
+	}
+
+	private static List<Player> startPlayers(Track track, Cycle cycle) {
+		String id = track.getStartingPositions().keySet().iterator().next();
+		List<Player> players = new ArrayList<Player>();
+		players.add(new Player(id, cycle, track.getStartingPositions()
+				.get(id)));
+		return players;
+	}
+
+	private static <K> void add(Map<K, Double> map, K key, double p) {
+		map.put(key, get(map, key) + p);
+	}
+
+	private static <K> double get(Map<K, Double> map, K key) {
+		Double p = map.get(key);
+		return p == null ? 0 : p;
+	}
+}
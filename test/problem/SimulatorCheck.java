@@ -0,0 +1,161 @@
+package problem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the flat array simulators, BatchRaceSim and PackedRaceSim,
+ * play races out with the same win rate and damage as
+ * RaceSimTools.sampleNextState. Run as a program from the project directory;
+ * throws on the first failure.
+ */
+public class SimulatorCheck {
+
+	private static final String TRACKS = "testcases/example/";
+	private static final int NUM_RACES = 20000;
+	// Standard errors two estimates may differ by
+	private static final double MAX_Z = 5;
+	// Actions drawn from on every turn, so that both diagonal moves and
+	// obstacle mode are exercised
+	private static final Action[] ACTIONS = { Action.FS, Action.FF,
+			Action.NE, Action.SE };
+
+	public static void main(String[] args) throws IOException {
+		Setup setup = new Setup(TRACKS + "novice/cycle.txt",
+				TRACKS + "novice/meta-track.txt");
+		for (String name : new String[] { "stLucia", "gatton", "union",
+				"novice/hawken" }) {
+			Track track = new Track(TRACKS + name + ".txt");
+			for (int c = 0; c < setup.getCycles().size(); c += 5) {
+				RaceState start = startState(track, setup.getCycles().get(c));
+				String label = name + " " + setup.getCycles().get(c).getName();
+				Stats batch = runBatch(track, start, new Random(1));
+				Stats packed = runPacked(track, start, new Random(2));
+				Stats reference = runReference(track, start, new Random(3));
+				compare(label + " batch", batch, reference);
+				compare(label + " packed", packed, reference);
+			}
+		}
+		System.out.println("SimulatorCheck passed");
+	}
+
+	private static Stats runBatch(Track track, RaceState start,
+			Random random) {
+		BatchRaceSim sim = new BatchRaceSim(track, start, NUM_RACES);
+		Action[][] actions = new Action[NUM_RACES][1];
+		while (!sim.isFinished()) {
+			for (Action[] a : actions) {
+				a[0] = ACTIONS[random.nextInt(ACTIONS.length)];
+			}
+			sim.step(actions, random);
+		}
+		Stats stats = new Stats();
+		for (int r = 0; r < NUM_RACES; r++) {
+			stats.add(sim.getStatus(r) == RaceState.Status.WON,
+					sim.getTotalDamage(r));
+		}
+		return stats;
+	}
+
+	private static Stats runPacked(Track track, RaceState start,
+			Random random) {
+		PackedRaceSim sim = new PackedRaceSim(track, start);
+		long[] packed = sim.newState();
+		Action[] actions = new Action[1];
+		Stats stats = new Stats();
+		for (int r = 0; r < NUM_RACES; r++) {
+			sim.pack(start, packed);
+			double damage = 0;
+			while (sim.getStatus(packed) == RaceState.Status.RACING) {
+				actions[0] = ACTIONS[random.nextInt(ACTIONS.length)];
+				sim.step(packed, actions, random);
+				damage += sim.getPlayerDamage(packed, 0);
+			}
+			stats.add(sim.getStatus(packed) == RaceState.Status.WON, damage);
+		}
+		return stats;
+	}
+
+	private static Stats runReference(Track track, RaceState start,
+			Random random) {
+		Stats stats = new Stats();
+		for (int r = 0; r < NUM_RACES; r++) {
+			RaceState state = start;
+			double damage = 0;
+			while (state.getStatus() == RaceState.Status.RACING) {
+				state = RaceSimTools.sampleNextState(state, Arrays.asList(
+						ACTIONS[random.nextInt(ACTIONS.length)]), track,
+						random);
+				damage += state.getPlayers().get(0).getDamageCost();
+			}
+			stats.add(state.getStatus() == RaceState.Status.WON, damage);
+		}
+		return stats;
+	}
+
+	private static void compare(String label, Stats a, Stats b) {
+		if (!close(a.getWinRate(), a.getWinRateVariance(), b.getWinRate(),
+				b.getWinRateVariance())) {
+			throw new AssertionError(label + " win rate " + a.getWinRate()
+					+ " but " + b.getWinRate() + " with sampleNextState");
+		}
+		if (!close(a.getMeanDamage(), a.getDamageVariance(),
+				b.getMeanDamage(), b.getDamageVariance())) {
+			throw new AssertionError(label + " mean damage "
+					+ a.getMeanDamage() + " but " + b.getMeanDamage()
+					+ " with sampleNextState");
+		}
+	}
+
+	private static boolean close(double a, double varA, double b,
+			double varB) {
+		double error = Math.sqrt((varA + varB) / NUM_RACES);
+		return Math.abs(a - b) <= MAX_Z * error + 1e-9;
+	}
+
+	private static RaceState startState(Track track, Cycle cycle) {
+		String id = track.getStartingPositions().keySet().iterator().next();
+		List<Player> players = new ArrayList<Player>();
+		players.add(new Player(id, cycle, track.getStartingPositions()
+				.get(id)));
+		return new RaceState(players, track.getOpponents(),
+				track.getDistractors());
+	}
+
+	/** Win count and damage sums of some races */
+	private static class Stats {
+		private int n;
+		private int won;
+		private double damage;
+		private double damageSquared;
+
+		public void add(boolean isWon, double raceDamage) {
+			n++;
+			if (isWon) {
+				won++;
+			}
+			damage += raceDamage;
+			damageSquared += raceDamage * raceDamage;
+		}
+
+		public double getWinRate() {
+			return (double) won / n;
+		}
+
+		public double getWinRateVariance() {
+			return getWinRate() * (1 - getWinRate());
+		}
+
+		public double getMeanDamage() {
+			return damage / n;
+		}
+
+		public double getDamageVariance() {
+			double mean = getMeanDamage();
+			return Math.max(0, damageSquared / n - mean * mean);
+		}
+	}
+}